@@ -0,0 +1,248 @@
+package edu.usfca.cs272;
+
+import edu.usfca.cs272.InvertedWordIndex.SearchResult;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Outputs the same data structures as {@link PrettyJsonWriter} without any
+ * whitespace, either as one minified JSON object or as newline-delimited JSON
+ * (NDJSON) with one member of that object per line. Everything is written
+ * straight to the writer as it is visited, so nothing is built up in memory.
+ * Numbers and scores are formatted exactly as {@link PrettyJsonWriter} formats
+ * them.
+ * <p>
+ * Lines always end with a single {@code '\n'}, as NDJSON requires. Warning: This
+ * class is not thread-safe. If multiple threads access this class concurrently,
+ * access must be synchronized externally.
+ *
+ * @author Thomas de Laveaga
+ * @see OutputFormat
+ */
+public class CompactJsonWriter {
+    /**
+     * Writes the text surrounded by {@code " "} quotation marks.
+     *
+     * @param text   the text to write
+     * @param writer the writer to use
+     * @throws IOException if an IO error occurs
+     */
+    private static void writeQuote(String text, Writer writer) throws IOException {
+        writer.write('"');
+        writer.write(text);
+        writer.write('"');
+    }
+
+    /**
+     * Writes the elements as a minified JSON array.
+     *
+     * @param elements the elements to write
+     * @param writer   the writer to use
+     * @throws IOException if an IO error occurs
+     */
+    public static void writeArray(Collection<? extends Number> elements, Writer writer) throws IOException {
+        writer.write('[');
+        Iterator<? extends Number> iterator = elements.iterator();
+        if (iterator.hasNext()) {
+            PrettyJsonWriter.writeNumber(iterator.next(), writer);
+        }
+        while (iterator.hasNext()) {
+            writer.write(',');
+            PrettyJsonWriter.writeNumber(iterator.next(), writer);
+        }
+        writer.write(']');
+    }
+
+    /**
+     * Writes the elements as a minified JSON object, or as one single-member
+     * object per line.
+     *
+     * @param elements the elements to write
+     * @param writer   the writer to use
+     * @param lines    true for NDJSON, false for one minified object
+     * @throws IOException if an IO error occurs
+     */
+    public static void writeObject(Map<String, ? extends Number> elements, Writer writer, boolean lines)
+            throws IOException {
+        startObject(writer, lines);
+        boolean first = true;
+        for (Map.Entry<String, ? extends Number> element : elements.entrySet()) {
+            startMember(element.getKey(), writer, lines, first);
+            PrettyJsonWriter.writeNumber(element.getValue(), writer);
+            endMember(writer, lines);
+            first = false;
+        }
+        endObject(writer, lines);
+    }
+
+    /**
+     * Writes the elements as a minified JSON object with nested arrays.
+     *
+     * @param elements the elements to write
+     * @param writer   the writer to use
+     * @throws IOException if an IO error occurs
+     */
+    public static void writeNestedArrays(Map<String, ? extends Collection<? extends Number>> elements,
+                                         Writer writer) throws IOException {
+        writer.write('{');
+        boolean first = true;
+        for (var element : elements.entrySet()) {
+            startMember(element.getKey(), writer, false, first);
+            writeArray(element.getValue(), writer);
+            first = false;
+        }
+        writer.write('}');
+    }
+
+    /**
+     * Writes an InvertedWordIndex as a minified JSON object, or as one word per
+     * line.
+     *
+     * @param wordMap the words mapped to their locations and positions
+     * @param writer  the writer to use
+     * @param lines   true for NDJSON, false for one minified object
+     * @throws IOException if an IO error occurs
+     */
+    public static void invertedWordIndexToJSON(Map<String, ? extends Map<String, ? extends Set<Integer>>> wordMap,
+                                               Writer writer, boolean lines) throws IOException {
+        startObject(writer, lines);
+        boolean first = true;
+        for (var wordEntry : wordMap.entrySet()) {
+            startMember(wordEntry.getKey(), writer, lines, first);
+            writeNestedArrays(wordEntry.getValue(), writer);
+            endMember(writer, lines);
+            first = false;
+        }
+        endObject(writer, lines);
+    }
+
+    /**
+     * Writes search results as a minified JSON object, or as one query per line.
+     *
+     * @param elements the queries mapped to their SearchResults
+     * @param writer   the writer to use
+     * @param lines    true for NDJSON, false for one minified object
+     * @throws IOException if an IO error occurs
+     */
+    public static void resultsToJSON(Map<String, ? extends Collection<SearchResult>> elements,
+                                     Writer writer, boolean lines) throws IOException {
+        startObject(writer, lines);
+        boolean first = true;
+        for (var entry : elements.entrySet()) {
+            writeResultsEntry(entry.getKey(), entry.getValue(), writer, lines, first);
+            first = false;
+        }
+        endObject(writer, lines);
+    }
+
+    /**
+     * Writes one query and its SearchResults, so the results can be written one
+     * query at a time between {@link #startObject(Writer, boolean)} and
+     * {@link #endObject(Writer, boolean)}.
+     *
+     * @param query   the query
+     * @param results the SearchResults of the query
+     * @param writer  the writer to use
+     * @param lines   true for NDJSON, false for one minified object
+     * @param first   whether this is the first query written
+     * @throws IOException if an IO error occurs
+     */
+    public static void writeResultsEntry(String query, Collection<SearchResult> results, Writer writer,
+                                         boolean lines, boolean first) throws IOException {
+        startMember(query, writer, lines, first);
+        writer.write('[');
+        boolean firstResult = true;
+        for (SearchResult result : results) {
+            if (!firstResult) {
+                writer.write(',');
+            }
+            writeSearchResult(result, writer);
+            firstResult = false;
+        }
+        writer.write(']');
+        endMember(writer, lines);
+    }
+
+    /**
+     * Writes a single SearchResult as a minified JSON object.
+     *
+     * @param result the SearchResult to write
+     * @param writer the writer to use
+     * @throws IOException if an IO error occurs
+     */
+    public static void writeSearchResult(SearchResult result, Writer writer) throws IOException {
+        writer.write("{\"count\":");
+        PrettyJsonWriter.writeNumber(result.getCount(), writer);
+        writer.write(",\"score\":");
+        PrettyJsonWriter.writeScore(result.getScore(), writer);
+        writer.write(",\"where\":");
+        writeQuote(result.getWhere(), writer);
+        writer.write('}');
+    }
+
+    /**
+     * Opens the top-level object. NDJSON has no top-level object, so nothing is
+     * written for it.
+     *
+     * @param writer the writer to use
+     * @param lines  true for NDJSON, false for one minified object
+     * @throws IOException if an IO error occurs
+     */
+    public static void startObject(Writer writer, boolean lines) throws IOException {
+        if (!lines) {
+            writer.write('{');
+        }
+    }
+
+    /**
+     * Closes the top-level object opened by {@link #startObject(Writer, boolean)}.
+     *
+     * @param writer the writer to use
+     * @param lines  true for NDJSON, false for one minified object
+     * @throws IOException if an IO error occurs
+     */
+    public static void endObject(Writer writer, boolean lines) throws IOException {
+        if (!lines) {
+            writer.write('}');
+        }
+    }
+
+    /**
+     * Writes what comes before the value of a member: the separating comma or,
+     * for NDJSON, the opening brace of the line, then the quoted key.
+     *
+     * @param key    the key of the member
+     * @param writer the writer to use
+     * @param lines  true for NDJSON, false for one minified object
+     * @param first  whether this is the first member
+     * @throws IOException if an IO error occurs
+     */
+    private static void startMember(String key, Writer writer, boolean lines, boolean first) throws IOException {
+        if (lines) {
+            writer.write('{');
+        } else if (!first) {
+            writer.write(',');
+        }
+        writeQuote(key, writer);
+        writer.write(':');
+    }
+
+    /**
+     * Writes what comes after the value of a member, which for NDJSON closes
+     * the line.
+     *
+     * @param writer the writer to use
+     * @param lines  true for NDJSON, false for one minified object
+     * @throws IOException if an IO error occurs
+     */
+    private static void endMember(Writer writer, boolean lines) throws IOException {
+        if (lines) {
+            writer.write("}\n");
+        }
+    }
+}
@@ -0,0 +1,705 @@
+package edu.usfca.cs272;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Persists the progress of a web crawl so it can be resumed after the program
+ * stops. Progress is kept in files inside a directory:
+ * <ul>
+ *     <li>an append-only log with one record for every URL that is queued and
+ *     one record for every page that is finished, including the words found on
+ *     that page and its near-duplicate fingerprint, if it has one</li>
+ *     <li>a snapshot of every queued URL, every finished URL and the words and
+ *     fingerprint of every finished page</li>
+ * </ul>
+ * Only the pages of the crawl are saved, never the rest of the index it adds
+ * to, so words added by a text build or by loading an index are not saved with
+ * the crawl.
+ * <p>
+ * Once the log has as many finished pages as the snapshot, it is renamed to
+ * {@code log.old}, a new log is started, and the old snapshot and old log are
+ * merged into a new snapshot. The merge reads and writes the files without
+ * holding the lock of this object, so the crawl keeps going, and merging only
+ * when the log has doubled keeps the total work linear in the size of the crawl.
+ * <p>
+ * Restoring reads the snapshot and then replays {@code log.old}, if a merge
+ * did not finish, and the log. The frontier of the crawl is every queued URL
+ * that was not finished. A record cut short by a crash at the end of a log is
+ * ignored. A finished page is not added back to the index if the index already
+ * has words from its location, such as after recovering a write-ahead log,
+ * but its fingerprint is still registered with the near-duplicate detector.
+ *
+ * @author Thomas de Laveaga
+ * @see WebCrawler
+ */
+public class CrawlCheckpoint {
+    /**
+     * Logger used for this class
+     */
+    private static final Logger log = LogManager.getLogger();
+
+    /**
+     * Version written at the start of the snapshot and of each log
+     */
+    private static final int VERSION = 3;
+
+    /**
+     * Log record of a URL that was queued to be crawled
+     */
+    private static final byte QUEUED = 'Q';
+
+    /**
+     * Log record of a URL that finished crawling, followed by its words
+     */
+    private static final byte DONE = 'D';
+
+    /**
+     * Default smallest number of finished pages between snapshots
+     */
+    public static final int DEFAULT_INTERVAL = 100;
+
+    /**
+     * The snapshot file
+     */
+    private final Path snapshotPath;
+
+    /**
+     * The log file
+     */
+    private final Path logPath;
+
+    /**
+     * The log being merged into the snapshot
+     */
+    private final Path oldLogPath;
+
+    /**
+     * Smallest number of finished pages between snapshots
+     */
+    private final int interval;
+
+    /**
+     * Every URL that was queued, in the order they were queued
+     */
+    private final LinkedHashSet<String> seen;
+
+    /**
+     * Every URL that finished crawling
+     */
+    private final Set<String> done;
+
+    /**
+     * The index the crawl adds to, or null before {@link #reset(InvertedWordIndex)}
+     * or {@link #restore(InvertedWordIndex)} is called
+     */
+    private InvertedWordIndex index;
+
+    /**
+     * The open log, or null if it has not been opened yet
+     */
+    private DataOutputStream logOutput;
+
+    /**
+     * Number of pages finished since the log was started
+     */
+    private int sinceSnapshot;
+
+    /**
+     * Number of finished pages in the snapshot, once the running merge finishes
+     */
+    private int snapshotPages;
+
+    /**
+     * Whether the old log is being merged into the snapshot
+     */
+    private boolean merging;
+
+    /**
+     * Constructs a new instance of this class, creating the directory if needed.
+     *
+     * @param directory the directory to store the checkpoint in
+     * @throws IOException if unable to create the directory
+     */
+    public CrawlCheckpoint(Path directory) throws IOException {
+        this(directory, DEFAULT_INTERVAL);
+    }
+
+    /**
+     * Constructs a new instance of this class, creating the directory if needed.
+     *
+     * @param directory the directory to store the checkpoint in
+     * @param interval  the smallest number of finished pages between snapshots
+     * @throws IOException if unable to create the directory
+     */
+    public CrawlCheckpoint(Path directory, int interval) throws IOException {
+        Files.createDirectories(directory);
+        this.snapshotPath = directory.resolve("snapshot");
+        this.logPath = directory.resolve("log");
+        this.oldLogPath = directory.resolve("log.old");
+        this.interval = Math.max(1, interval);
+        this.seen = new LinkedHashSet<>();
+        this.done = new HashSet<>();
+    }
+
+    /**
+     * Discards any saved progress and starts a new checkpoint for a crawl that
+     * adds to the provided index.
+     *
+     * @param index the index the crawl adds to
+     * @throws IOException if unable to remove the old files or open the log
+     */
+    public synchronized void reset(InvertedWordIndex index) throws IOException {
+        closeLog();
+        Files.deleteIfExists(snapshotPath);
+        Files.deleteIfExists(oldLogPath);
+        Files.deleteIfExists(logPath);
+        seen.clear();
+        done.clear();
+        sinceSnapshot = 0;
+        snapshotPages = 0;
+        this.index = index;
+        openLog();
+    }
+
+    /**
+     * Restores saved progress, adding the words of every finished page to the
+     * provided index unless it already has words from that page.
+     *
+     * @param index the index the crawl adds to
+     * @return the URLs that were queued but not finished, in the order they were
+     * queued, or an empty list if there was no saved progress
+     * @throws IOException if unable to read the snapshot or the log
+     */
+    public List<URL> restore(InvertedWordIndex index) throws IOException {
+        return restore(index, null);
+    }
+
+    /**
+     * Restores saved progress, adding the words of every finished page to the
+     * provided index unless it already has words from that page, and
+     * registering the saved fingerprint of every finished page with the
+     * detector.
+     *
+     * @param index    the index the crawl adds to
+     * @param detector the detector of near-duplicate pages, or null
+     * @return the URLs that were queued but not finished, in the order they were
+     * queued, or an empty list if there was no saved progress
+     * @throws IOException if unable to read the snapshot or the log
+     */
+    public synchronized List<URL> restore(InvertedWordIndex index, NearDuplicateDetector detector)
+            throws IOException {
+        closeLog();
+        seen.clear();
+        done.clear();
+        this.index = index;
+
+        int skipped = 0;
+        try (DataInputStream in = open(snapshotPath, true)) {
+            readHeader(in, seen, done);
+            int pages = in.readInt();
+            for (int i = 0; i < pages; i++) {
+                if (!addPage(in.readUTF(), readPage(in), detector)) {
+                    skipped++;
+                }
+            }
+        } catch (NoSuchFileException e) {
+            log.debug("No checkpoint snapshot at {}", snapshotPath);
+        }
+
+        int replayed = 0;
+        for (Path path : List.of(oldLogPath, logPath)) {
+            try (DataInputStream in = open(path, false)) {
+                if (!readVersion(in, path)) {
+                    continue;
+                }
+                while (true) {
+                    int type = in.read();
+                    if (type < 0) {
+                        break;
+                    }
+                    String url = in.readUTF();
+                    if (type == QUEUED) {
+                        seen.add(url);
+                    } else if (type == DONE) {
+                        byte[] page = readPage(in);
+                        if (done.add(url) && !addPage(url, page, detector)) {
+                            skipped++;
+                        }
+                    } else {
+                        throw new IOException("Unknown checkpoint record " + type + " in " + path);
+                    }
+                    replayed++;
+                }
+            } catch (EOFException e) {
+                log.warn("Ignoring incomplete record at the end of {}", path);
+            } catch (NoSuchFileException e) {
+                log.debug("No checkpoint log at {}", path);
+            }
+        }
+
+        List<URL> frontier = new ArrayList<>();
+        for (String url : seen) {
+            if (!done.contains(url)) {
+                try {
+                    frontier.add(new URL(url));
+                } catch (MalformedURLException e) {
+                    log.warn("Skipping malformed URL in checkpoint: {}", url);
+                }
+            }
+        }
+        log.info("Restored {} queued and {} finished pages ({} log records, {} pages already in the index)",
+                seen.size(), done.size(), replayed, skipped);
+
+        // start from a fresh snapshot so the incomplete tail, if any, is dropped
+        if (Files.exists(oldLogPath)) {
+            merge();
+        }
+        if (Files.exists(logPath)) {
+            Files.move(logPath, oldLogPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            merge();
+        }
+        sinceSnapshot = 0;
+        snapshotPages = done.size();
+        openLog();
+        return frontier;
+    }
+
+    /**
+     * Adds the words of a restored page to the index, unless the index already
+     * has words from that page, and registers its fingerprint, if any.
+     *
+     * @param url      the URL of the page
+     * @param page     the page, as written by {@link #encode(InvertedWordIndex, Long)}
+     * @param detector the detector of near-duplicate pages, or null
+     * @return true if the words were added
+     * @throws IOException if unable to read the page
+     */
+    private boolean addPage(String url, byte[] page, NearDuplicateDetector detector) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(page));
+        if (in.readBoolean()) {
+            long fingerprint = in.readLong();
+            if (detector != null) {
+                detector.register(url, fingerprint);
+            }
+        }
+        if (index.getCount(url) > 0) {
+            return false;
+        }
+        index.addAll(InvertedWordIndex.read(in));
+        return true;
+    }
+
+    /**
+     * Returns every URL that was queued, including the ones that finished.
+     *
+     * @return an unmodifiable copy of the queued URLs
+     */
+    public synchronized Set<String> getSeen() {
+        return Collections.unmodifiableSet(new LinkedHashSet<>(seen));
+    }
+
+    /**
+     * Records that a URL was queued to be crawled.
+     *
+     * @param url the URL that was queued
+     */
+    public synchronized void queued(URL url) {
+        String location = url.toString();
+        if (seen.add(location)) {
+            try {
+                logOutput.writeByte(QUEUED);
+                logOutput.writeUTF(location);
+                logOutput.flush();
+            } catch (IOException e) {
+                log.warn("Unable to log queued URL {}: {}", location, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Records that a URL finished crawling and adds the words found on it to
+     * the crawl index. Merges the log into the snapshot if the log has grown
+     * enough, without holding the lock of this object.
+     *
+     * @param url  the URL that finished
+     * @param page the words found on the page, or null if nothing needs to be
+     *             added to the index
+     */
+    public void done(URL url, InvertedWordIndex page) {
+        done(url, page, null);
+    }
+
+    /**
+     * Records that a URL finished crawling along with its near-duplicate
+     * fingerprint and adds the words found on it to the crawl index.
+     *
+     * @param url         the URL that finished
+     * @param page        the words found on the page, or null if nothing needs
+     *                    to be added to the index
+     * @param fingerprint the fingerprint the page was registered with, or null
+     * @see #done(URL, InvertedWordIndex)
+     */
+    public void done(URL url, InvertedWordIndex page, Long fingerprint) {
+        String location = url.toString();
+        if (page == null) {
+            page = new InvertedWordIndex();
+        }
+        // encoded before taking the lock so other pages do not wait on it
+        byte[] bytes = encode(page, fingerprint);
+        boolean snapshot = false;
+        synchronized (this) {
+            if (!done.add(location)) {
+                return;
+            }
+            try {
+                logOutput.writeByte(DONE);
+                logOutput.writeUTF(location);
+                logOutput.writeInt(bytes.length);
+                logOutput.write(bytes);
+                logOutput.flush();
+            } catch (IOException e) {
+                log.warn("Unable to log finished URL {}: {}", location, e.getMessage());
+            }
+            if (++sinceSnapshot >= Math.max(interval, snapshotPages) && !merging) {
+                try {
+                    startMerge();
+                    snapshot = true;
+                } catch (IOException e) {
+                    log.warn("Unable to start a checkpoint snapshot: {}", e.getMessage());
+                }
+            }
+        }
+        index.addAll(page);
+
+        if (snapshot) {
+            try {
+                merge();
+            } catch (IOException e) {
+                log.warn("Unable to write checkpoint snapshot: {}", e.getMessage());
+            } finally {
+                synchronized (this) {
+                    merging = false;
+                }
+            }
+        }
+    }
+
+    /**
+     * Merges the log into a final snapshot and closes the log. Must not be
+     * called while pages are still being finished.
+     *
+     * @throws IOException if unable to write the snapshot
+     */
+    public synchronized void close() throws IOException {
+        if (!merging) {
+            startMerge();
+            try {
+                merge();
+            } finally {
+                merging = false;
+            }
+        }
+        closeLog();
+    }
+
+    /**
+     * Renames the log so it can be merged into the snapshot and starts a new
+     * log. Must hold the lock of this object.
+     *
+     * @throws IOException if unable to rename the log or start a new one
+     */
+    private void startMerge() throws IOException {
+        closeLog();
+        try {
+            Files.move(logPath, oldLogPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            // keep appending to the log that is still there
+            logOutput = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(logPath.toFile(), true)));
+            throw e;
+        }
+        merging = true;
+        snapshotPages += sinceSnapshot;
+        sinceSnapshot = 0;
+        openLog();
+    }
+
+    /**
+     * Merges the snapshot and the old log into a new snapshot, then deletes the
+     * old log. Only reads and writes files, so it does not need the lock of this
+     * object, but only one merge may run at a time.
+     *
+     * @throws IOException if unable to read the old files or write the snapshot
+     */
+    private void merge() throws IOException {
+        // first pass: every URL in the snapshot and the old log, and the pages the old log adds
+        LinkedHashSet<String> mergedSeen = new LinkedHashSet<>();
+        LinkedHashSet<String> mergedDone = new LinkedHashSet<>();
+        int snapshotCount = 0;
+        try (DataInputStream in = open(snapshotPath, true)) {
+            readHeader(in, mergedSeen, mergedDone);
+            snapshotCount = in.readInt();
+        } catch (NoSuchFileException e) {
+            log.debug("No checkpoint snapshot to merge at {}", snapshotPath);
+        }
+        Set<String> added = new HashSet<>();
+        replayOldLog((type, url, in) -> {
+            if (type == QUEUED) {
+                mergedSeen.add(url);
+            } else {
+                skipPage(in);
+                if (mergedDone.add(url)) {
+                    added.add(url);
+                }
+            }
+        });
+
+        // second pass: copy the pages of the snapshot, then the new pages of the old log
+        Path temp = Files.createTempFile(snapshotPath.getParent(), "snapshot", ".tmp");
+        try {
+            try (FileOutputStream file = new FileOutputStream(temp.toFile())) {
+                GZIPOutputStream compressed = new GZIPOutputStream(file);
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(compressed));
+                out.writeInt(VERSION);
+                out.writeInt(mergedSeen.size());
+                for (String url : mergedSeen) {
+                    out.writeUTF(url);
+                }
+                out.writeInt(mergedDone.size());
+                for (String url : mergedDone) {
+                    out.writeUTF(url);
+                }
+                out.writeInt(snapshotCount + added.size());
+                if (snapshotCount > 0) {
+                    try (DataInputStream in = open(snapshotPath, true)) {
+                        readHeader(in, new LinkedHashSet<>(), new HashSet<>());
+                        in.readInt();
+                        for (int i = 0; i < snapshotCount; i++) {
+                            out.writeUTF(in.readUTF());
+                            byte[] page = readPage(in);
+                            out.writeInt(page.length);
+                            out.write(page);
+                        }
+                    }
+                }
+                replayOldLog((type, url, in) -> {
+                    if (type == DONE) {
+                        byte[] page = readPage(in);
+                        if (added.remove(url)) {
+                            out.writeUTF(url);
+                            out.writeInt(page.length);
+                            out.write(page);
+                        }
+                    }
+                });
+                out.flush();
+                compressed.finish();
+                file.getFD().sync(); // the snapshot must be on disk before the old log is deleted
+            }
+            Files.move(temp, snapshotPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        Files.deleteIfExists(oldLogPath);
+        log.debug("Merged checkpoint log into {} ({} finished pages)", snapshotPath, mergedDone.size());
+    }
+
+    /**
+     * Handles one record of the old log.
+     */
+    @FunctionalInterface
+    private interface Record {
+        /**
+         * Handles one record of the old log. A {@link #DONE} record must read
+         * or skip its page.
+         *
+         * @param type the type of record
+         * @param url  the URL of the record
+         * @param in   the log, positioned at the page of a {@link #DONE} record
+         * @throws IOException if unable to read or write
+         */
+        void accept(int type, String url, DataInputStream in) throws IOException;
+    }
+
+    /**
+     * Reads every complete record of the old log, ignoring a record cut short
+     * at the end.
+     *
+     * @param record handles each record
+     * @throws IOException if unable to read the log or the log is damaged
+     */
+    private void replayOldLog(Record record) throws IOException {
+        try (DataInputStream in = open(oldLogPath, false)) {
+            if (!readVersion(in, oldLogPath)) {
+                return;
+            }
+            while (true) {
+                int type = in.read();
+                if (type < 0) {
+                    break;
+                }
+                if (type != QUEUED && type != DONE) {
+                    throw new IOException("Unknown checkpoint record " + type + " in " + oldLogPath);
+                }
+                record.accept(type, in.readUTF(), in);
+            }
+        } catch (EOFException e) {
+            log.debug("Ignoring incomplete record at the end of {}", oldLogPath);
+        } catch (NoSuchFileException e) {
+            log.debug("No checkpoint log to merge at {}", oldLogPath);
+        }
+    }
+
+    /**
+     * Reads the version, queued URLs and finished URLs at the start of a snapshot.
+     *
+     * @param in   the snapshot
+     * @param seen where to add the queued URLs
+     * @param done where to add the finished URLs
+     * @throws IOException if unable to read the snapshot or its version is not supported
+     */
+    private void readHeader(DataInputStream in, Set<String> seen, Set<String> done) throws IOException {
+        if (in.readInt() != VERSION) {
+            throw new IOException("Unsupported checkpoint version in " + snapshotPath);
+        }
+        int seenCount = in.readInt();
+        for (int i = 0; i < seenCount; i++) {
+            seen.add(in.readUTF());
+        }
+        int doneCount = in.readInt();
+        for (int i = 0; i < doneCount; i++) {
+            done.add(in.readUTF());
+        }
+    }
+
+    /**
+     * Reads the version at the start of a log.
+     *
+     * @param in   the log
+     * @param path the log file, for the error message
+     * @return false if the log is empty
+     * @throws IOException if unable to read the log or its version is not supported
+     */
+    private static boolean readVersion(DataInputStream in, Path path) throws IOException {
+        int version;
+        try {
+            version = in.readInt();
+        } catch (EOFException e) {
+            return false; // created but nothing written yet
+        }
+        if (version != VERSION) {
+            throw new IOException("Unsupported checkpoint version in " + path);
+        }
+        return true;
+    }
+
+    /**
+     * Reads a page written with its length in front.
+     *
+     * @param in the snapshot or log
+     * @return the page, as written by {@link #encode(InvertedWordIndex, Long)}
+     * @throws IOException if unable to read the page
+     */
+    private static byte[] readPage(DataInputStream in) throws IOException {
+        byte[] page = new byte[in.readInt()];
+        in.readFully(page);
+        return page;
+    }
+
+    /**
+     * Skips the words of a page written with its length in front.
+     *
+     * @param in the snapshot or log
+     * @throws IOException if unable to skip the page
+     */
+    private static void skipPage(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (in.skipBytes(length) != length) {
+            throw new EOFException();
+        }
+    }
+
+    /**
+     * Writes the fingerprint and the words of a page to a byte array. The
+     * fingerprint comes first, after a flag saying whether there is one, and
+     * the words follow as written by {@link InvertedWordIndex#write(java.io.DataOutput)}.
+     *
+     * @param page        the words of the page
+     * @param fingerprint the near-duplicate fingerprint of the page, or null
+     * @return the encoded page
+     */
+    private static byte[] encode(InvertedWordIndex page, Long fingerprint) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeBoolean(fingerprint != null);
+            if (fingerprint != null) {
+                out.writeLong(fingerprint);
+            }
+            page.write(out);
+        } catch (IOException e) {
+            throw new IllegalStateException(e); // never thrown by an in-memory stream
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Opens an empty log for writing, replacing any existing records.
+     *
+     * @throws IOException if unable to open the log
+     */
+    private void openLog() throws IOException {
+        logOutput = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(logPath.toFile())));
+        logOutput.writeInt(VERSION);
+        logOutput.flush();
+    }
+
+    /**
+     * Closes the log if it is open.
+     *
+     * @throws IOException if unable to close the log
+     */
+    private void closeLog() throws IOException {
+        if (logOutput != null) {
+            logOutput.close();
+            logOutput = null;
+        }
+    }
+
+    /**
+     * Opens a checkpoint file for reading.
+     *
+     * @param path       the file to open
+     * @param compressed true if the file is gzip compressed
+     * @return a data input stream reading the file
+     * @throws IOException if unable to open the file
+     */
+    private static DataInputStream open(Path path, boolean compressed) throws IOException {
+        InputStream input = Files.newInputStream(path);
+        return new DataInputStream(new BufferedInputStream(compressed ? new GZIPInputStream(input) : input));
+    }
+}
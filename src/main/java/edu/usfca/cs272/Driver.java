@@ -3,16 +3,15 @@ package edu.usfca.cs272;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
-import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.Writer;
 import java.net.MalformedURLException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.Arrays;
-
-import static java.nio.charset.StandardCharsets.UTF_8;
+import java.util.concurrent.CompletableFuture;
 
 
 /**
@@ -46,25 +45,94 @@ public class Driver {
         InvertedWordIndex invertedWordIndex;
         QueryFileHandlerInterface queryFileHandler;
 
-        ThreadSafeInvertedWordIndex threadSafe; // we use this to initialize queryFileHandler and avoid down-casting
+        ThreadSafeInvertedWordIndex threadSafe = null; // we use this to initialize queryFileHandler and avoid down-casting
+        ThreadSafeQueryFileHandler threadSafeQueries = null; // used to search while writing the other outputs
         WorkQueue workQueue = null;
 
-        if (argumentParser.hasFlag("-threads") || argumentParser.hasFlag("-html")) {
+        if (argumentParser.hasFlag("-threads") || argumentParser.hasFlag("-html") || argumentParser.hasFlag("-wal")
+                || argumentParser.hasFlag("-server")) {
             int threads = argumentParser.getInteger("-threads", 5);
             if (threads < 1) {
                 threads = 5;
             }
             log.debug("-threads or web crawling detected! Initializing a workQueue with {} threads", threads);
-            workQueue = new WorkQueue(threads);
-            threadSafe = new ThreadSafeInvertedWordIndex();
+            int capacity = argumentParser.getInteger("-capacity", Integer.MAX_VALUE);
+            if (capacity < 1) {
+                capacity = Integer.MAX_VALUE;
+            }
+            WorkQueue.Overflow overflow = "caller".equalsIgnoreCase(argumentParser.getString("-overflow"))
+                    ? WorkQueue.Overflow.CALLER_RUNS : WorkQueue.Overflow.BLOCK;
+            if (argumentParser.hasFlag("-adaptive")) {
+                int maxThreads = Math.max(threads, argumentParser.getInteger("-adaptive", WorkQueue.DEFAULT_MAX));
+                workQueue = new WorkQueue(threads, 1, maxThreads, capacity, overflow);
+            } else {
+                workQueue = new WorkQueue(threads, capacity, overflow);
+            }
+            ReadWriteLock.Policy policy = switch (argumentParser.getString("-lockpolicy", "reader").toLowerCase()) {
+                case "writer" -> ReadWriteLock.Policy.WRITER_PREFERRING;
+                case "fair" -> ReadWriteLock.Policy.PHASE_FAIR;
+                default -> ReadWriteLock.Policy.READER_PREFERRING;
+            };
+            threadSafe = new ThreadSafeInvertedWordIndex(argumentParser.hasFlag("-optimistic"), policy);
             invertedWordIndex = threadSafe;
-            queryFileHandler =
-                    new ThreadSafeQueryFileHandler(threadSafe, workQueue);
+            threadSafeQueries = new ThreadSafeQueryFileHandler(threadSafe, workQueue);
+            queryFileHandler = threadSafeQueries;
         } else {
             invertedWordIndex = new InvertedWordIndex();
             queryFileHandler = new QueryFileHandler(invertedWordIndex);
         }
 
+        // restore what a crashed run had added before anything else is added, and log every change from here on
+        WriteAheadLog wal = null;
+        if (argumentParser.hasFlag("-wal")) {
+            Path walPath = argumentParser.getPath("-wal", Path.of("wal"));
+            long started = System.nanoTime();
+            try {
+                wal = new WriteAheadLog(walPath);
+                long replayed = threadSafe.recover(wal);
+                if (argumentParser.hasFlag("-stats")) {
+                    System.out.printf("Recovered %s: %d words, %d log records replayed in %.1f ms%n", walPath,
+                            threadSafe.size(), replayed, (System.nanoTime() - started) / 1e6);
+                }
+            } catch (IOException e) {
+                System.out.println("IO Error while recovering from the write-ahead log: " + e.getMessage());
+                wal = null;
+            }
+        }
+
+        // seed the index with a previously written JSON index before building or crawling adds to it
+        if (argumentParser.hasValue("-load")) {
+            Path loadPath = argumentParser.getPath("-load");
+            long started = System.nanoTime();
+            try {
+                invertedWordIndex.addAll(InvertedWordIndex.readJSON(loadPath));
+                double millis = (System.nanoTime() - started) / 1e6;
+                log.info("Loaded {} words from {} in {} ms", invertedWordIndex.size(), loadPath, millis);
+                if (argumentParser.hasFlag("-stats")) {
+                    System.out.printf("Loaded %s: %d words in %.1f ms%n", loadPath, invertedWordIndex.size(), millis);
+                }
+            } catch (IOException e) {
+                System.out.println("IO Error while loading the index from " + loadPath + ": " + e.getMessage());
+            }
+        }
+
+        // build from text files in the background so it can share the work queue with a crawl
+        CompletableFuture<Void> building = null;
+        if (argumentParser.hasValue("-text")) {
+            Path inputPath = argumentParser.getPath("-text");
+            log.debug("Input: " + inputPath);
+            try {
+                if (invertedWordIndex instanceof ThreadSafeInvertedWordIndex) {
+                    building = WordIndexBuilder.buildAsync(inputPath, (ThreadSafeInvertedWordIndex) invertedWordIndex,
+                            workQueue);
+                } else {
+                    WordIndexBuilder.build(inputPath, invertedWordIndex); /* populate wordIndex*/
+                }
+            } catch (IOException e) {
+                System.out.println("IO Error while scanning directory: " + inputPath);
+            }
+        }
+
         if (argumentParser.hasFlag("-html")) {
             String seed = argumentParser.getString("-html");
             if (seed == null) {
@@ -76,43 +144,82 @@ public class Driver {
             if (max < 0) {
                 max = 1;
             }
-            WebCrawler webCrawler = new WebCrawler(max);
+            HttpCache cache = null;
+            if (argumentParser.hasFlag("-cache")) {
+                Path cachePath = argumentParser.getPath("-cache", Path.of("cache"));
+                try {
+                    cache = new HttpCache(cachePath);
+                } catch (IOException e) {
+                    System.out.println("IO Error while creating the cache directory: " + cachePath);
+                }
+            }
+            CrawlCheckpoint checkpoint = null;
+            if (argumentParser.hasFlag("-checkpoint") || argumentParser.hasFlag("-resume")) {
+                Path checkpointPath = argumentParser.getPath("-checkpoint", Path.of("checkpoint"));
+                try {
+                    checkpoint = new CrawlCheckpoint(checkpointPath);
+                } catch (IOException e) {
+                    System.out.println("IO Error while creating the checkpoint directory: " + checkpointPath);
+                }
+            }
+            NearDuplicateDetector detector = argumentParser.hasFlag("-dedup") ? new NearDuplicateDetector() : null;
+            int maxBytes = argumentParser.getInteger("-maxbytes", (int) FetchContext.DEFAULT_MAX_BYTES);
+            if (maxBytes < 1) {
+                maxBytes = (int) FetchContext.DEFAULT_MAX_BYTES;
+            }
+            int timeout = argumentParser.getInteger("-timeout", FetchContext.DEFAULT_TIME_LIMIT / 1000);
+            if (timeout < 1) {
+                timeout = FetchContext.DEFAULT_TIME_LIMIT / 1000;
+            }
+            FetchContext fetchContext = new FetchContext(maxBytes, timeout * 1000);
+            WebCrawler webCrawler = new WebCrawler(max, cache, checkpoint, detector, fetchContext);
             assert invertedWordIndex instanceof ThreadSafeInvertedWordIndex;
             try {
-                webCrawler.startCrawl(seed, (ThreadSafeInvertedWordIndex) invertedWordIndex, workQueue);
+                if (argumentParser.hasFlag("-resume")) {
+                    webCrawler.resumeCrawl(seed, (ThreadSafeInvertedWordIndex) invertedWordIndex, workQueue);
+                } else {
+                    webCrawler.startCrawl(seed, (ThreadSafeInvertedWordIndex) invertedWordIndex, workQueue);
+                }
             } catch (MalformedURLException e) {
                 System.out.printf("Malformed URL detected: " + seed);
+            } catch (IOException e) {
+                System.out.println("IO Error while saving or restoring the crawl checkpoint: " + e.getMessage());
             }
         }
 
-
-        if (argumentParser.hasValue("-text")) {
-            Path inputPath = argumentParser.getPath("-text");
-            log.debug("Input: " + inputPath);
-            try {
-                if (invertedWordIndex instanceof ThreadSafeInvertedWordIndex) {
-                    WordIndexBuilder.build(inputPath, (ThreadSafeInvertedWordIndex) invertedWordIndex, workQueue);
-                } else {
-                    WordIndexBuilder.build(inputPath, invertedWordIndex); /* populate wordIndex*/
-                }
-            } catch (IOException e) {
-                System.out.println("IO Error while scanning directory: " + inputPath);
-            }
+        if (building != null) {
+            building.join(); // the text build ran alongside the crawl
         }
 
-        if (argumentParser.hasValue("-query")) {
+        // search in the background while the index and counts are written, since both only read the index
+        CompletableFuture<Void> searching = null;
+        // streamed results are searched while they are written instead
+        boolean streaming = threadSafeQueries != null && argumentParser.hasFlag("-stream")
+                && argumentParser.hasFlag("-results");
+        if (argumentParser.hasValue("-query") && !streaming) {
             Path queryPath = argumentParser.getPath("-query");
             try {
-                queryFileHandler.parseQuery(queryPath, argumentParser.hasFlag("-exact"));
+                if (threadSafeQueries != null) {
+                    searching = threadSafeQueries.parseQueryAsync(queryPath, argumentParser.hasFlag("-exact"));
+                } else {
+                    queryFileHandler.parseQuery(queryPath, argumentParser.hasFlag("-exact"));
+                }
             } catch (IOException e) {
                 System.out.println("IO Error while attempting to query: " + queryPath);
             }
         }
 
+        OutputFormat format = OutputFormat.of(argumentParser.getString("-format"), OutputFormat.PRETTY);
+        boolean gzip = argumentParser.hasFlag("-gzip");
+
         if (argumentParser.hasFlag("-counts")) {
             Path countOutput = argumentParser.getPath("-counts", Path.of("counts.json"));
+            long started = System.nanoTime();
             try {
-                invertedWordIndex.wordCountToJSON(countOutput);
+                try (Writer writer = PrettyJsonWriter.newWriter(countOutput, gzip)) {
+                    invertedWordIndex.wordCountToJSON(writer, format);
+                }
+                reportOutput(argumentParser, countOutput, format, gzip, started);
             } catch (IOException e) {
                 System.out.println("IO Error occurred while attempting to output the word count to: " + countOutput);
             }
@@ -120,28 +227,112 @@ public class Driver {
 
         if (argumentParser.hasFlag("-index")) {
             Path outputPath = argumentParser.getPath("-index", Path.of("index.json"));
-            try (BufferedWriter bufWriter = Files.newBufferedWriter(outputPath, UTF_8)) {
-                invertedWordIndex.toJSON(bufWriter, 0);
+            long started = System.nanoTime();
+            try {
+                if (workQueue != null && format == OutputFormat.PRETTY && !gzip) {
+                    invertedWordIndex.toJSON(outputPath, workQueue);
+                } else {
+                    try (Writer writer = PrettyJsonWriter.newWriter(outputPath, gzip)) {
+                        invertedWordIndex.toJSON(writer, format);
+                    }
+                }
+                reportOutput(argumentParser, outputPath, format, gzip, started);
             } catch (IOException e) {
                 System.out.println("IO Error occurred while attempting to output JSON to " + outputPath);
             }
         }
 
+        if (searching != null) {
+            searching.join();
+        }
+
         if (argumentParser.hasFlag("-results")) {
             Path queryOutput = argumentParser.getPath("-results", Path.of("results.json"));
+            long started = System.nanoTime();
             try {
-                queryFileHandler.resultsToJSON(queryOutput);
+                try (Writer writer = PrettyJsonWriter.newWriter(queryOutput, gzip)) {
+                    if (streaming && argumentParser.hasValue("-query")) {
+                        threadSafeQueries.streamResults(argumentParser.getPath("-query"),
+                                argumentParser.hasFlag("-exact"), writer, format);
+                    } else {
+                        queryFileHandler.resultsToJSON(writer, format);
+                    }
+                }
+                reportOutput(argumentParser, queryOutput, format, gzip, started);
             } catch (IOException e) {
                 System.out.println("IO Error occurred while attempting to output search results to: " + queryOutput);
             }
         }
 
+        // the run finished and its outputs are written, so the next run must not restore it again
+        if (wal != null) {
+            try {
+                wal.discard();
+                if (argumentParser.hasFlag("-stats")) {
+                    System.out.printf("Write-ahead log:%n%s%n", wal);
+                }
+            } catch (IOException e) {
+                System.out.println("IO Error while closing the write-ahead log: " + e.getMessage());
+            }
+        }
+
+        // keep the index in memory and answer searches until the process is stopped
+        if (argumentParser.hasFlag("-server")) {
+            int port = argumentParser.getInteger("-server", SearchServer.DEFAULT_PORT);
+            try {
+                SearchServer server = new SearchServer(threadSafe, workQueue, port);
+                Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                    server.stop();
+                    if (argumentParser.hasFlag("-stats")) {
+                        System.out.printf("Search server:%n%s%n", server);
+                    }
+                }));
+                server.start();
+                System.out.printf("Serving searches at http://localhost:%d/search%n", server.getPort());
+                server.awaitStop();
+            } catch (IOException e) {
+                System.out.println("IO Error while starting the search server on port " + port + ": " + e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
         if (workQueue != null) {
             workQueue.join();
+            if (argumentParser.hasFlag("-stats") && invertedWordIndex instanceof ThreadSafeInvertedWordIndex index) {
+                System.out.printf("Index lock:%n%s%n", index.getLockStats());
+                if (index.isOptimistic()) {
+                    System.out.printf("Optimistic reads: %d from the read-only copy, %d under the read lock%n",
+                            index.getOptimisticHits(), index.getOptimisticMisses());
+                }
+                System.out.printf("Work queue:%n%s%n", workQueue.getStats());
+            }
         }
         // calculate time elapsed and output
         long elapsed = Duration.between(start, Instant.now()).toMillis();
         double seconds = (double) elapsed / Duration.ofSeconds(1).toMillis();
         log.debug("Elapsed: {} seconds", seconds);
     }
+
+    /**
+     * Prints the size of an output file and how long it took to write, if the
+     * -stats flag was given, so the output formats can be compared.
+     *
+     * @param argumentParser the parsed arguments
+     * @param output         the output file, already closed
+     * @param format         the layout of the JSON
+     * @param gzip           whether the file is gzip-compressed
+     * @param started        when writing started, from {@link System#nanoTime()}
+     * @throws IOException if unable to read the size of the file
+     */
+    private static void reportOutput(ArgumentParser argumentParser, Path output, OutputFormat format, boolean gzip,
+                                     long started) throws IOException {
+        double millis = (System.nanoTime() - started) / 1e6;
+        long size = Files.size(output);
+        log.info("Wrote {}: {} bytes in {} ms ({}{})", output, size, millis, format, gzip ? ", gzip" : "");
+        if (argumentParser.hasFlag("-stats")) {
+            System.out.printf("Wrote %s: %d bytes in %.1f ms (%s%s)%n", output, size, millis,
+                    format.name().toLowerCase(), gzip ? ", gzip" : "");
+        }
+    }
 }
@@ -0,0 +1,439 @@
+package edu.usfca.cs272;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Settings and counters shared by every fetch made during a single crawl. The
+ * counters are updated concurrently by the crawling threads.
+ * <p>
+ * The settings bound the resources a single page can use: a page whose content
+ * is larger than the byte limit, or that takes longer than the time limit to
+ * connect and download, is abandoned as soon as the limit is reached.
+ *
+ * @author Thomas de Laveaga
+ * @see HtmlFetcher#fetch(java.net.URL, int, FetchContext)
+ */
+public class FetchContext {
+    /**
+     * Default maximum number of content bytes read for a single page
+     */
+    public static final long DEFAULT_MAX_BYTES = 8L * 1024 * 1024;
+
+    /**
+     * Default maximum time in milliseconds to connect to and download a single page
+     */
+    public static final int DEFAULT_TIME_LIMIT = 30_000;
+
+    /**
+     * Maximum number of content bytes read for a single page
+     */
+    private final long maxBytes;
+
+    /**
+     * Maximum time in milliseconds to connect to and download a single page
+     */
+    private final int timeLimit;
+
+    /**
+     * Resolves and caches the addresses of the hosts fetched from
+     */
+    private final HostResolver resolver;
+
+    /**
+     * Number of responses read.
+     */
+    private final LongAdder responses;
+
+    /**
+     * Number of responses that used a compressed content encoding.
+     */
+    private final LongAdder compressed;
+
+    /**
+     * Number of 304 (not modified) responses to conditional requests.
+     */
+    private final LongAdder notModified;
+
+    /**
+     * Number of bytes read from the socket, including headers.
+     */
+    private final LongAdder wireBytes;
+
+    /**
+     * Number of content bytes after removing the transfer and content encoding.
+     */
+    private final LongAdder decodedBytes;
+
+    /**
+     * Number of fetches abandoned because the page was larger than the byte limit
+     */
+    private final LongAdder tooLarge;
+
+    /**
+     * Number of fetches abandoned because the page took longer than the time limit
+     */
+    private final LongAdder tooSlow;
+
+    /**
+     * Number of fetches abandoned because the content type was not HTML
+     */
+    private final LongAdder notHtml;
+
+    /**
+     * Constructs a new instance of this class with the default limits
+     */
+    public FetchContext() {
+        this(DEFAULT_MAX_BYTES, DEFAULT_TIME_LIMIT);
+    }
+
+    /**
+     * Constructs a new instance of this class
+     *
+     * @param maxBytes  the maximum number of content bytes read for a single page
+     * @param timeLimit the maximum time in milliseconds to connect to and download a single page
+     */
+    public FetchContext(long maxBytes, int timeLimit) {
+        this(maxBytes, timeLimit, new HostResolver());
+    }
+
+    /**
+     * Constructs a new instance of this class
+     *
+     * @param maxBytes  the maximum number of content bytes read for a single page
+     * @param timeLimit the maximum time in milliseconds to connect to and download a single page
+     * @param resolver  resolves and caches the addresses of the hosts fetched from
+     */
+    public FetchContext(long maxBytes, int timeLimit, HostResolver resolver) {
+        if (maxBytes < 1 || timeLimit < 1) {
+            throw new IllegalArgumentException("Fetch limits must be positive");
+        }
+        this.maxBytes = maxBytes;
+        this.timeLimit = timeLimit;
+        this.resolver = resolver;
+        this.tooLarge = new LongAdder();
+        this.tooSlow = new LongAdder();
+        this.notHtml = new LongAdder();
+        this.responses = new LongAdder();
+        this.compressed = new LongAdder();
+        this.notModified = new LongAdder();
+        this.wireBytes = new LongAdder();
+        this.decodedBytes = new LongAdder();
+    }
+
+    /**
+     * Wraps the raw socket stream so every byte read is counted as a byte on
+     * the wire.
+     *
+     * @param input the socket input stream
+     * @return a stream that counts the bytes read
+     */
+    public InputStream countWire(InputStream input) {
+        responses.increment();
+        return new CountingInputStream(input, wireBytes);
+    }
+
+    /**
+     * Wraps the decoded content stream so every byte read is counted as a
+     * decoded byte.
+     *
+     * @param input      the decoded content stream
+     * @param compressed true if the content used a compressed encoding
+     * @return a stream that counts the bytes read
+     */
+    public InputStream countDecoded(InputStream input, boolean compressed) {
+        if (compressed) {
+            this.compressed.increment();
+        }
+        return new CountingInputStream(input, decodedBytes);
+    }
+
+    /**
+     * Wraps a stream so that reading fails with a {@link LimitExceededException}
+     * once more than the byte limit has been read or the deadline has passed.
+     *
+     * @param input    the stream to limit
+     * @param deadline the {@link System#nanoTime()} value after which reading fails
+     * @return a stream that enforces the limits
+     * @see #getDeadline()
+     */
+    public InputStream limit(InputStream input, long deadline) {
+        return new LimitedInputStream(input, maxBytes, deadline);
+    }
+
+    /**
+     * @return the {@link System#nanoTime()} value at which a fetch starting now
+     * runs out of time
+     */
+    public long getDeadline() {
+        return System.nanoTime() + timeLimit * 1_000_000L;
+    }
+
+    /**
+     * Counts a fetch abandoned because it exceeded a limit.
+     *
+     * @param e the exception thrown when the limit was exceeded
+     */
+    public void recordAborted(LimitExceededException e) {
+        (e.isTimeout() ? tooSlow : tooLarge).increment();
+    }
+
+    /**
+     * Counts a fetch abandoned before reading the content because the content
+     * type was not HTML.
+     */
+    public void recordNotHtml() {
+        notHtml.increment();
+    }
+
+    /**
+     * Counts a 304 (not modified) response to a conditional request.
+     */
+    public void recordNotModified() {
+        notModified.increment();
+    }
+
+    /**
+     * @return the maximum number of content bytes read for a single page
+     */
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * @return the maximum time in milliseconds to connect to and download a single page
+     */
+    public int getTimeLimit() {
+        return timeLimit;
+    }
+
+    /**
+     * @return the resolver used to look up the addresses of the hosts fetched from
+     */
+    public HostResolver getResolver() {
+        return resolver;
+    }
+
+    /**
+     * @return the number of fetches abandoned because the page was too large
+     */
+    public long getTooLarge() {
+        return tooLarge.sum();
+    }
+
+    /**
+     * @return the number of fetches abandoned because the page took too long
+     */
+    public long getTooSlow() {
+        return tooSlow.sum();
+    }
+
+    /**
+     * @return the number of fetches abandoned because the content was not HTML
+     */
+    public long getNotHtml() {
+        return notHtml.sum();
+    }
+
+    /**
+     * @return the number of responses read
+     */
+    public long getResponses() {
+        return responses.sum();
+    }
+
+    /**
+     * @return the number of responses that used a compressed content encoding
+     */
+    public long getCompressed() {
+        return compressed.sum();
+    }
+
+    /**
+     * @return the number of 304 (not modified) responses
+     */
+    public long getNotModified() {
+        return notModified.sum();
+    }
+
+    /**
+     * @return the number of bytes read from the socket, including headers
+     */
+    public long getWireBytes() {
+        return wireBytes.sum();
+    }
+
+    /**
+     * @return the number of content bytes after decoding
+     */
+    public long getDecodedBytes() {
+        return decodedBytes.sum();
+    }
+
+    @Override
+    public String toString() {
+        long wire = getWireBytes();
+        long decoded = getDecodedBytes();
+        return String.format("%d responses (%d compressed, %d not modified), %d bytes on wire, %d bytes decoded (%.2fx), "
+                                + "aborted %d too large, %d too slow, %d not html; dns: %s",
+                getResponses(), getCompressed(), getNotModified(), wire, decoded,
+                wire == 0 ? 0.0 : (double) decoded / wire, getTooLarge(), getTooSlow(), getNotHtml(), resolver);
+    }
+
+    /**
+     * An input stream that adds the number of bytes read to a counter.
+     */
+    private static class CountingInputStream extends FilterInputStream {
+        /**
+         * The counter to add to
+         */
+        private final LongAdder counter;
+
+        /**
+         * Constructs a new instance of this class
+         *
+         * @param input   the stream to read from
+         * @param counter the counter to add to
+         */
+        private CountingInputStream(InputStream input, LongAdder counter) {
+            super(input);
+            this.counter = counter;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                counter.increment();
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int read = super.read(buffer, offset, length);
+            if (read > 0) {
+                counter.add(read);
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            counter.add(skipped);
+            return skipped;
+        }
+    }
+
+    /**
+     * Thrown when a fetch is abandoned because the page was too large or took
+     * too long.
+     */
+    public static class LimitExceededException extends IOException {
+        /**
+         * Version of the serialized form
+         */
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * True if the time limit was exceeded, false if the byte limit was
+         */
+        private final boolean timeout;
+
+        /**
+         * Constructs a new instance of this class
+         *
+         * @param message the detail message
+         * @param timeout true if the time limit was exceeded, false if the byte limit was
+         */
+        public LimitExceededException(String message, boolean timeout) {
+            super(message);
+            this.timeout = timeout;
+        }
+
+        /**
+         * @return true if the time limit was exceeded, false if the byte limit was
+         */
+        public boolean isTimeout() {
+            return timeout;
+        }
+    }
+
+    /**
+     * An input stream that fails once too many bytes have been read or a
+     * deadline has passed.
+     */
+    private static class LimitedInputStream extends FilterInputStream {
+        /**
+         * Number of bytes that may still be read
+         */
+        private long remaining;
+
+        /**
+         * The {@link System#nanoTime()} value after which reading fails
+         */
+        private final long deadline;
+
+        /**
+         * Constructs a new instance of this class
+         *
+         * @param input    the stream to read from
+         * @param maxBytes the maximum number of bytes to read
+         * @param deadline the {@link System#nanoTime()} value after which reading fails
+         */
+        private LimitedInputStream(InputStream input, long maxBytes, long deadline) {
+            super(input);
+            this.remaining = maxBytes;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Throws if the deadline has passed or nothing more may be read.
+         *
+         * @throws LimitExceededException if a limit was exceeded
+         */
+        private void check() throws LimitExceededException {
+            if (System.nanoTime() - deadline > 0) {
+                throw new LimitExceededException("Time limit exceeded", true);
+            }
+            if (remaining < 0) {
+                throw new LimitExceededException("Byte limit exceeded", false);
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            check();
+            int b = super.read();
+            if (b >= 0) {
+                remaining--;
+                check();
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            check();
+            // read at most one byte past the limit to tell an exact fit from an overflow
+            int read = super.read(buffer, offset, (int) Math.min(length, remaining + 1));
+            if (read > 0) {
+                remaining -= read;
+                check();
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            check();
+            long skipped = super.skip(Math.min(n, remaining + 1));
+            remaining -= skipped;
+            check();
+            return skipped;
+        }
+    }
+}
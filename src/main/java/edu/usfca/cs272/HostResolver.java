@@ -0,0 +1,284 @@
+package edu.usfca.cs272;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Caches host name lookups for the crawler so a host is resolved once per
+ * time-to-live instead of once per fetched page. Lookups of the same host made
+ * at the same time share a single resolution, and hosts can be resolved ahead
+ * of time with {@link #prefetch(String, Executor)} so the fetch that needs the
+ * address does not wait for it.
+ * <p>
+ * Failed lookups are not cached. This class is thread safe.
+ *
+ * @author Thomas de Laveaga
+ * @see FetchContext#getResolver()
+ */
+public class HostResolver {
+    /**
+     * Logger used for this class
+     */
+    private static final Logger log = LogManager.getLogger();
+
+    /**
+     * Default time in milliseconds a resolved address is kept
+     */
+    public static final long DEFAULT_TTL = 300_000;
+
+    /**
+     * Looks up the addresses of a host name.
+     */
+    @FunctionalInterface
+    public interface Lookup {
+        /**
+         * Looks up the addresses of a host name.
+         *
+         * @param host the host name
+         * @return the addresses of the host, at least one
+         * @throws UnknownHostException if the host cannot be resolved
+         */
+        InetAddress[] lookup(String host) throws UnknownHostException;
+    }
+
+    /**
+     * The lookup used on a cache miss
+     */
+    private final Lookup lookup;
+
+    /**
+     * Time in milliseconds a resolved address is kept
+     */
+    private final long ttl;
+
+    /**
+     * Returns the current time in milliseconds
+     */
+    private final LongSupplier clock;
+
+    /**
+     * Host names mapped to their current or in-flight resolution
+     */
+    private final ConcurrentHashMap<String, Resolution> cache;
+
+    /**
+     * Number of lookups answered from the cache, including ones that waited on
+     * a resolution already in progress
+     */
+    private final LongAdder hits;
+
+    /**
+     * Number of lookups that had to resolve the host
+     */
+    private final LongAdder misses;
+
+    /**
+     * Number of resolutions that failed
+     */
+    private final LongAdder failures;
+
+    /**
+     * Time spent resolving hosts, in nanoseconds
+     */
+    private final LongAdder resolveNanos;
+
+    /**
+     * Time spent in {@link #resolve(String)} waiting for an address, in nanoseconds
+     */
+    private final LongAdder waitNanos;
+
+    /**
+     * Constructs a new instance of this class that uses the system resolver and
+     * the default time-to-live.
+     */
+    public HostResolver() {
+        this(InetAddress::getAllByName, DEFAULT_TTL, System::currentTimeMillis);
+    }
+
+    /**
+     * Constructs a new instance of this class
+     *
+     * @param lookup the lookup used on a cache miss
+     * @param ttl    the time in milliseconds a resolved address is kept
+     * @param clock  returns the current time in milliseconds
+     */
+    public HostResolver(Lookup lookup, long ttl, LongSupplier clock) {
+        this.lookup = lookup;
+        this.ttl = ttl;
+        this.clock = clock;
+        this.cache = new ConcurrentHashMap<>();
+        this.hits = new LongAdder();
+        this.misses = new LongAdder();
+        this.failures = new LongAdder();
+        this.resolveNanos = new LongAdder();
+        this.waitNanos = new LongAdder();
+    }
+
+    /**
+     * Returns an address of the host, resolving it only if there is no fresh
+     * cached address. Waits if another thread is already resolving the host.
+     *
+     * @param host the host name
+     * @return an address of the host
+     * @throws UnknownHostException if the host cannot be resolved
+     */
+    public InetAddress resolve(String host) throws UnknownHostException {
+        long start = System.nanoTime();
+        try {
+            return claim(host).join()[0];
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof UnknownHostException unknown) {
+                throw unknown;
+            }
+            // such as an invalid host name, so the fetch fails like any other unresolvable host
+            UnknownHostException unknown = new UnknownHostException(host + ": " + e.getCause());
+            unknown.initCause(e.getCause());
+            throw unknown;
+        } finally {
+            waitNanos.add(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Starts resolving the host on the executor unless a fresh or in-flight
+     * resolution is already cached. Used to resolve newly discovered hosts
+     * before a fetch needs them.
+     *
+     * @param host     the host name
+     * @param executor the executor to resolve the host on, such as a {@link TaskGroup}
+     */
+    public void prefetch(String host, Executor executor) {
+        if (isCached(host)) {
+            return;
+        }
+        executor.execute(() -> {
+            if (claim(host).isCompletedExceptionally()) {
+                log.debug("Unable to resolve {} ahead of time", host);
+            }
+        });
+    }
+
+    /**
+     * Determines whether a fresh or in-flight resolution of the host is cached.
+     *
+     * @param host the host name
+     * @return true if looking up the host would not start a new resolution
+     */
+    public boolean isCached(String host) {
+        Resolution resolution = cache.get(host);
+        return resolution != null && resolution.expires > clock.getAsLong();
+    }
+
+    /**
+     * Returns the cached resolution of the host or, if there is no fresh one,
+     * caches a new resolution and runs it on the calling thread.
+     *
+     * @param host the host name
+     * @return the resolution of the host
+     */
+    private CompletableFuture<InetAddress[]> claim(String host) {
+        long now = clock.getAsLong();
+        boolean[] claimed = new boolean[1];
+        Resolution resolution = cache.compute(host, (key, cached) -> {
+            if (cached != null && cached.expires > now) {
+                return cached;
+            }
+            claimed[0] = true;
+            return new Resolution(now + ttl);
+        });
+        if (!claimed[0]) {
+            hits.increment(); // fresh, or already being resolved by another thread
+            return resolution.addresses;
+        }
+
+        misses.increment();
+        long start = System.nanoTime();
+        try {
+            resolution.addresses.complete(lookup.lookup(host));
+        } catch (UnknownHostException | RuntimeException e) {
+            failures.increment();
+            cache.remove(host, resolution);
+            resolution.addresses.completeExceptionally(e);
+        } finally {
+            resolveNanos.add(System.nanoTime() - start);
+        }
+        return resolution.addresses;
+    }
+
+    /**
+     * @return the number of lookups answered from the cache
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return the number of lookups that had to resolve the host
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return the number of resolutions that failed
+     */
+    public long getFailures() {
+        return failures.sum();
+    }
+
+    /**
+     * @return the time spent resolving hosts, in nanoseconds
+     */
+    public long getResolveNanos() {
+        return resolveNanos.sum();
+    }
+
+    /**
+     * @return the time spent in {@link #resolve(String)} waiting for an address,
+     * in nanoseconds; resolutions done ahead of time are not included
+     */
+    public long getWaitNanos() {
+        return waitNanos.sum();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d lookups (%d cached, %d resolved, %d failed), %.1f ms resolving, %.1f ms waiting",
+                getHits() + getMisses(), getHits(), getMisses(), getFailures(), getResolveNanos() / 1e6,
+                getWaitNanos() / 1e6);
+    }
+
+    /**
+     * A cached resolution of a host and when it expires
+     */
+    private static class Resolution {
+        /**
+         * The addresses of the host, completed once resolved
+         */
+        private final CompletableFuture<InetAddress[]> addresses;
+
+        /**
+         * The time in milliseconds after which the resolution is stale
+         */
+        private final long expires;
+
+        /**
+         * Constructs a new instance of this class
+         *
+         * @param expires the time in milliseconds after which the resolution is stale
+         */
+        private Resolution(long expires) {
+            this.addresses = new CompletableFuture<>();
+            this.expires = expires;
+        }
+    }
+}
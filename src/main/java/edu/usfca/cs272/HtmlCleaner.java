@@ -2,8 +2,6 @@ package edu.usfca.cs272;
 
 import org.apache.commons.text.StringEscapeUtils;
 
-import java.util.HashSet;
-import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 /**
@@ -56,26 +54,10 @@ public class HtmlCleaner {
      * @param html text including HTML entities to remove
      * @return text with all HTML entities converted or removed
      * @see StringEscapeUtils#unescapeHtml4(String)
-     * @see String#replaceAll(String, String)
+     * @see HtmlEntities#unescape(String)
      */
     public static String stripEntities(String html) {
-        //regex: https://regex101.com/r/mXSE7f/1
-        final String regex = "&\\S+?;";
-        final Pattern pattern = Pattern.compile(regex);
-        final Matcher matcher = pattern.matcher(html);
-        HashSet<String> matches = new HashSet<>();
-        while (matcher.find()) {
-            matches.add(matcher.group()); // get unique results
-        }
-
-        for (String match : matches) {
-            String escaped = StringEscapeUtils.unescapeHtml4(match);
-            if (escaped.equals(match)) {
-                escaped = "";
-            }
-            html = html.replaceAll(match, escaped);
-        }
-        return html;
+        return HtmlEntities.unescape(html);
     }
 
     /**
@@ -160,11 +142,10 @@ public class HtmlCleaner {
      * @return text clean of any HTML tags and certain block elements
      * @see #stripBlockElements(String)
      * @see #stripTags(String)
+     * @see #stripEntities(String)
+     * @see HtmlScanner#scan(String)
      */
     public static String stripHtml(String html) {
-        html = stripBlockElements(html);
-        html = stripTags(html);
-        html = stripEntities(html);
-        return html;
+        return HtmlScanner.scan(html);
     }
 }
@@ -0,0 +1,163 @@
+package edu.usfca.cs272;
+
+import org.apache.commons.text.StringEscapeUtils;
+import org.apache.commons.text.translate.EntityArrays;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Decodes HTML 4 entities in a single pass using a precomputed entity table.
+ * An entity is an {@code &} followed by one or more non-whitespace characters
+ * up to the first {@code ;}. Recognized entities are replaced with their
+ * Unicode equivalent and unrecognized entities are removed, giving the same
+ * result as calling {@link StringEscapeUtils#unescapeHtml4(String)} on every
+ * match of the {@code &\S+?;} regular expression.
+ *
+ * @author Thomas de Laveaga
+ * @see HtmlCleaner#stripEntities(String)
+ * @see StringEscapeUtils#unescapeHtml4(String)
+ */
+public class HtmlEntities {
+    /**
+     * Named entities (including the {@code &} and {@code ;}) mapped to their
+     * Unicode equivalent. Built from the same tables used by
+     * {@link StringEscapeUtils#unescapeHtml4(String)}.
+     */
+    private static final Map<String, String> ENTITIES = createTable();
+
+    /**
+     * Builds the named entity table.
+     *
+     * @return a map of named entities to their Unicode equivalent
+     */
+    private static Map<String, String> createTable() {
+        Map<String, String> table = new HashMap<>();
+        for (Map<CharSequence, CharSequence> entities : List.of(
+                EntityArrays.BASIC_UNESCAPE,
+                EntityArrays.ISO8859_1_UNESCAPE,
+                EntityArrays.HTML40_EXTENDED_UNESCAPE)) {
+            for (var entry : entities.entrySet()) {
+                table.putIfAbsent(entry.getKey().toString(), entry.getValue().toString());
+            }
+        }
+        return table;
+    }
+
+    /**
+     * Replaces all HTML 4 entities in the text with their Unicode equivalent or,
+     * if unrecognized, with an empty string.
+     *
+     * @param html text including HTML entities
+     * @return text with all HTML entities converted or removed
+     */
+    public static String unescape(String html) {
+        if (html.indexOf('&') < 0) {
+            return html;
+        }
+        StringBuilder text = new StringBuilder(html.length());
+        int entity = -1;
+        for (int i = 0; i < html.length(); i++) {
+            entity = append(text, html.charAt(i), entity);
+        }
+        return text.toString();
+    }
+
+    /**
+     * Appends a character to the text, decoding the entity at the end of the
+     * text if this character completes one. Callers keep the returned position
+     * and pass it back in with the next character; start with -1.
+     *
+     * @param text   the text being built
+     * @param c      the character to append
+     * @param entity the position of the {@code &} starting a possible entity at
+     *               the end of the text, or -1 if there is none
+     * @return the position of the {@code &} starting a possible entity at the
+     * end of the text, or -1 if there is none
+     */
+    public static int append(StringBuilder text, char c, int entity) {
+        text.append(c);
+        switch (c) {
+            case '&':
+                return entity < 0 ? text.length() - 1 : entity;
+            case ';':
+                if (entity >= 0 && text.length() - entity > 2) {
+                    decodeTail(text, entity);
+                    return -1;
+                }
+                return entity;
+            case ' ', '\t', '\n', '\u000B', '\f', '\r':
+                return -1;
+            default:
+                return entity;
+        }
+    }
+
+    /**
+     * Decodes the entity running from the provided position to the end of the
+     * text. If the span contains more than one {@code &}, the first one that
+     * starts a recognized entity is decoded and the text before it is kept,
+     * just like {@link StringEscapeUtils#unescapeHtml4(String)}. If none is
+     * recognized, the whole span is removed.
+     *
+     * @param text  the text ending in a {@code ;}
+     * @param start the position of the {@code &} starting the span
+     */
+    private static void decodeTail(StringBuilder text, int start) {
+        int end = text.length();
+        for (int i = start; i < end; i++) {
+            if (text.charAt(i) == '&') {
+                String decoded = decode(text, i, end);
+                if (decoded != null) {
+                    text.setLength(i);
+                    text.append(decoded);
+                    return;
+                }
+            }
+        }
+        text.setLength(start);
+    }
+
+    /**
+     * Returns the Unicode equivalent of a single entity, or {@code null} if it
+     * is not recognized.
+     *
+     * @param text  the text containing the entity
+     * @param start the position of the {@code &}
+     * @param end   the position just past the {@code ;}
+     * @return the decoded entity or {@code null}
+     */
+    private static String decode(CharSequence text, int start, int end) {
+        if (end - start < 3) {
+            return null;
+        }
+        if (text.charAt(start + 1) != '#') {
+            return ENTITIES.get(text.subSequence(start, end).toString());
+        }
+
+        int i = start + 2;
+        int radix = 10;
+        if (text.charAt(i) == 'x' || text.charAt(i) == 'X') {
+            radix = 16;
+            i++;
+        }
+        int last = end - 1; // position of the ';'
+        if (i >= last) {
+            return null;
+        }
+        int codePoint = 0;
+        for (; i < last; i++) {
+            char c = text.charAt(i);
+            int digit = c < 128 ? Character.digit(c, radix) : -1;
+            if (digit < 0) {
+                return null;
+            }
+            codePoint = codePoint * radix + digit;
+            if (codePoint > Character.MAX_CODE_POINT) {
+                return null;
+            }
+        }
+        return Character.toString(codePoint);
+    }
+}
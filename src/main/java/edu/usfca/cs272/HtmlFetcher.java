@@ -1,16 +1,21 @@
 package edu.usfca.cs272;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
+import java.io.Reader;
+import java.io.UncheckedIOException;
 import java.net.MalformedURLException;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.net.URL;
 import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.stream.Collectors;
 
 
 /**
@@ -76,43 +81,172 @@ public class HtmlFetcher {
      * @param redirects the number of times to follow redirects
      * @return the html or {@code null} if unable to fetch the resource or the
      * resource is not html
-     * @see HttpsFetcher#openConnection(URL)
-     * @see HttpsFetcher#printGetRequest(PrintWriter, URL)
-     * @see HttpsFetcher#getHeaderFields(BufferedReader)
-     * @see String#join(CharSequence, CharSequence...)
+     * @see #fetch(URL, int, FetchContext)
+     */
+    public static String fetch(URL url, int redirects) {
+        return fetch(url, redirects, new FetchContext());
+    }
+
+    /**
+     * Fetches the resource at the URL using HTTP/1.1 and sockets, asking the
+     * server for gzip or deflate compressed content. The content is decompressed
+     * while it is read. If the status code is 200 and the content type is HTML,
+     * returns the HTML as a single string. If the status code is a valid
+     * redirect, will follow that redirect if the number of redirects is greater
+     * than 0. Otherwise, returns {@code null}.
+     *
+     * @param url       the url to fetch
+     * @param redirects the number of times to follow redirects
+     * @param context   the crawl-wide context used to count transferred bytes
+     * @return the html or {@code null} if unable to fetch the resource or the
+     * resource is not html
+     * @see #fetchResponse(URL, int, Map, FetchContext)
+     */
+    public static String fetch(URL url, int redirects, FetchContext context) {
+        Response response = fetchResponse(url, redirects, Map.of(), context);
+        return response == null ? null : response.getHtml();
+    }
+
+    /**
+     * Fetches the resource at the URL using HTTP/1.1 and sockets, sending the
+     * provided extra request headers (such as {@code If-None-Match}). Follows
+     * redirects like {@link #fetch(URL, int, FetchContext)}, sending the same
+     * extra headers each time except {@code If-None-Match} and
+     * {@code If-Modified-Since}, since those belong to the original URL and a
+     * 304 from the redirect target would not describe the cached page. Returns
+     * a response for a 200 status code with HTML content or for a 304 (not
+     * modified) status code. Otherwise, returns {@code null}.
+     * <p>
+     * The content is read as it arrives, and the fetch is abandoned as soon as
+     * it goes over the byte or time limit of the context, or as soon as the
+     * headers show the content type is not HTML. Abandoned fetches are counted
+     * by the context and return {@code null}.
+     *
+     * @param url            the url to fetch
+     * @param redirects      the number of times to follow redirects
+     * @param requestHeaders extra request headers to send
+     * @param context        the crawl-wide context used to count transferred bytes
+     * @return the response or {@code null} if unable to fetch the resource or
+     * the resource is not html
+     * @see HttpsFetcher#openConnection(URL, int, java.net.InetAddress)
+     * @see HostResolver#resolve(String)
+     * @see HttpsFetcher#printGetRequest(PrintWriter, URL, Map)
+     * @see HttpsFetcher#getHeaderFields(InputStream)
+     * @see HttpsFetcher#getContent(InputStream, Map)
      * @see #isHtml(Map)
      * @see #isRedirect(Map)
      */
-    public static String fetch(URL url, int redirects) {
-        String html = null;
+    public static Response fetchResponse(URL url, int redirects, Map<String, String> requestHeaders,
+                                         FetchContext context) {
+        long deadline = context.getDeadline();
         try (
-                Socket socket = HttpsFetcher.openConnection(url);
+                Socket socket = HttpsFetcher.openConnection(url, context.getTimeLimit(),
+                        context.getResolver().resolve(url.getHost()));
                 PrintWriter request = new PrintWriter(socket.getOutputStream());
-                InputStreamReader input = new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8);
-                BufferedReader response = new BufferedReader(input)
+                InputStream input = new BufferedInputStream(
+                        context.limit(context.countWire(socket.getInputStream()), deadline))
         ) {
             // make http GET request of the web server
-            HttpsFetcher.printGetRequest(request, url);
+            HttpsFetcher.printGetRequest(request, url, requestHeaders);
 
             // the headers will be first in the response
-            Map<String, List<String>> headers = HttpsFetcher.getHeaderFields(response);
+            Map<String, List<String>> headers = HttpsFetcher.getHeaderFields(input);
+            if (getStatusCode(headers) == 304) {
+                return new Response(headers, null);
+            }
             if (!isHtml(headers)) {
+                context.recordNotHtml(); // closing the socket abandons the content
                 return null;
             }
             if (isRedirect(headers) && redirects > 0) {
                 URL redirection = new URL(headers.get("Location").get(0));
-                return fetch(redirection, redirects - 1);
+                return fetchResponse(redirection, redirects - 1, withoutValidators(requestHeaders), context);
             }
             if (getStatusCode(headers) != 200) {
                 return null;
             }
+            String length = HttpsFetcher.getHeader(headers, "Content-Length");
+            if (length != null && !HttpsFetcher.isCompressed(headers) && isLonger(length, context.getMaxBytes())) {
+                throw new FetchContext.LimitExceededException("Content-Length " + length, false);
+            }
             // ELSE
-            html = response.lines().collect(Collectors.joining("\n"));
-        } catch (IOException e) {
-            html = null;
+            InputStream content = context.limit(context.countDecoded(
+                    HttpsFetcher.getContent(input, headers), HttpsFetcher.isCompressed(headers)), deadline);
+            return new Response(headers, readLines(new InputStreamReader(content, StandardCharsets.UTF_8)));
+        } catch (FetchContext.LimitExceededException e) {
+            context.recordAborted(e);
+            return null;
+        } catch (SocketTimeoutException e) {
+            context.recordAborted(new FetchContext.LimitExceededException(e.getMessage(), true));
+            return null;
+        } catch (IOException | UncheckedIOException e) {
+            return null;
         }
+    }
 
-        return html;
+    /**
+     * Removes the conditional request headers, which only apply to the URL
+     * they were cached for.
+     *
+     * @param requestHeaders the extra request headers
+     * @return the headers without {@code If-None-Match} and {@code If-Modified-Since}
+     */
+    private static Map<String, String> withoutValidators(Map<String, String> requestHeaders) {
+        Map<String, String> headers = new LinkedHashMap<>();
+        for (Map.Entry<String, String> header : requestHeaders.entrySet()) {
+            if (!header.getKey().equalsIgnoreCase("If-None-Match")
+                    && !header.getKey().equalsIgnoreCase("If-Modified-Since")) {
+                headers.put(header.getKey(), header.getValue());
+            }
+        }
+        return headers;
+    }
+
+    /**
+     * Determines whether a Content-Length header value is larger than the limit.
+     *
+     * @param length the header value
+     * @param limit  the maximum number of bytes
+     * @return true if the value is a number larger than the limit
+     */
+    private static boolean isLonger(String length, long limit) {
+        try {
+            return Long.parseLong(length.trim()) > limit;
+        } catch (NumberFormatException e) {
+            return false; // the limited stream still applies
+        }
+    }
+
+    /**
+     * Reads all text from the reader, giving the same result as joining
+     * {@link BufferedReader#lines()} with {@code "\n"}: every line terminator
+     * becomes {@code "\n"} and a final line terminator is dropped.
+     *
+     * @param reader the reader to read from
+     * @return the text read
+     * @throws IOException if unable to read
+     */
+    private static String readLines(Reader reader) throws IOException {
+        StringBuilder text = new StringBuilder();
+        char[] buffer = new char[8192];
+        boolean carriageReturn = false;
+        int read;
+        while ((read = reader.read(buffer)) >= 0) {
+            for (int i = 0; i < read; i++) {
+                char c = buffer[i];
+                if (c == '\n' && carriageReturn) {
+                    carriageReturn = false;
+                    continue; // second half of \r\n
+                }
+                carriageReturn = c == '\r';
+                text.append(carriageReturn ? '\n' : c);
+            }
+        }
+        int last = text.length() - 1;
+        if (last >= 0 && text.charAt(last) == '\n') {
+            text.setLength(last);
+        }
+        return text.toString();
     }
 
     /**
@@ -156,4 +290,61 @@ public class HtmlFetcher {
     public static String fetch(URL url) {
         return fetch(url, 0);
     }
+
+    /**
+     * The status, headers and HTML content of a fetched resource.
+     */
+    public static class Response {
+        /**
+         * The headers of the response, with the status line under the {@code null} key
+         */
+        private final Map<String, List<String>> headers;
+
+        /**
+         * The HTML content, or {@code null} if the response has no content
+         */
+        private final String html;
+
+        /**
+         * Constructs a new instance of this class
+         *
+         * @param headers the headers of the response
+         * @param html    the HTML content or {@code null}
+         */
+        public Response(Map<String, List<String>> headers, String html) {
+            this.headers = headers;
+            this.html = html;
+        }
+
+        /**
+         * @return the HTTP status code of the response
+         */
+        public int getStatusCode() {
+            return HtmlFetcher.getStatusCode(headers);
+        }
+
+        /**
+         * @return true if the server reported the resource was not modified
+         */
+        public boolean isNotModified() {
+            return getStatusCode() == 304;
+        }
+
+        /**
+         * Returns the first value of a header, ignoring the case of the name.
+         *
+         * @param name the header name
+         * @return the header value or {@code null} if not present
+         */
+        public String getHeader(String name) {
+            return HttpsFetcher.getHeader(headers, name);
+        }
+
+        /**
+         * @return the HTML content or {@code null} if the response has no content
+         */
+        public String getHtml() {
+            return html;
+        }
+    }
 }
@@ -0,0 +1,264 @@
+package edu.usfca.cs272;
+
+import java.net.URL;
+import java.util.Collection;
+
+/**
+ * Cleans HTML into plain text in a single linear pass over the input. Produces
+ * the same text as running {@link HtmlCleaner#stripBlockElements(String)},
+ * {@link HtmlCleaner#stripTags(String)} and {@link HtmlCleaner#stripEntities(String)}
+ * one after another, and optionally collects the same links that
+ * {@link LinkFinder#findUrls(URL, String, Collection)} would find in the HTML
+ * left over after stripping block elements.
+ * <p>
+ * Like {@link HtmlCleaner}, this class does not validate the HTML. The results
+ * match the regular expression passes on well-formed HTML; unusual nesting (for
+ * example a {@code </style>} string inside of a script) is handled the way a
+ * browser would rather than the way the chained passes would.
+ *
+ * @author Thomas de Laveaga
+ * @see HtmlCleaner
+ * @see LinkFinder
+ */
+public class HtmlScanner {
+    /**
+     * Elements removed along with everything between their opening and closing
+     * tags. Matches the elements removed by {@link HtmlCleaner#stripBlockElements(String)}.
+     */
+    private static final String[] BLOCK_ELEMENTS = {"head", "style", "script", "noscript", "iframe", "svg"};
+
+    /**
+     * Strips comments, block elements, tags and entities from the HTML.
+     *
+     * @param html the HTML to clean
+     * @return the visible text of the HTML
+     */
+    public static String scan(String html) {
+        return scan(html, null, null);
+    }
+
+    /**
+     * Strips comments, block elements, tags and entities from the HTML and adds
+     * the HTTP(S) links found in anchor tags to the provided collection.
+     *
+     * @param html the HTML to clean
+     * @param base the base URL used to convert relative URLs to absolute, or
+     *             {@code null} to skip link extraction
+     * @param urls the data structure to store found HTTP(S) URLs, or
+     *             {@code null} to skip link extraction
+     * @return the visible text of the HTML
+     * @see LinkFinder#addUrl(URL, String, Collection)
+     */
+    public static String scan(String html, URL base, Collection<URL> urls) {
+        boolean findLinks = base != null && urls != null;
+        StringBuilder text = new StringBuilder(html.length() / 2);
+        int entity = -1; // see HtmlEntities#append(StringBuilder, char, int)
+        int linkEnd = 0; // links are never found inside of the previous link
+
+        int length = html.length();
+        int i = 0;
+        while (i < length) {
+            char c = html.charAt(i);
+            if (c == '<') {
+                int end = skipRemoved(html, i);
+                if (end < 0) {
+                    if (findLinks && i >= linkEnd) {
+                        linkEnd = Math.max(linkEnd, findLink(html, i, base, urls));
+                    }
+                    end = skipTag(html, i);
+                }
+                if (end >= 0) {
+                    i = end;
+                    continue;
+                }
+            }
+
+            entity = HtmlEntities.append(text, c, entity);
+            i++;
+        }
+        return text.toString();
+    }
+
+    /**
+     * Returns the position just past the comment starting at the provided
+     * position, or -1 if there is no complete comment there.
+     *
+     * @param html  the HTML being scanned
+     * @param start the position of a {@code <} character
+     * @return the position after the comment or -1
+     */
+    private static int skipComment(String html, int start) {
+        if (!html.startsWith("<!--", start)) {
+            return -1;
+        }
+        // the comment must have at least one character of content
+        int end = html.indexOf("-->", start + 5);
+        return end < 0 ? -1 : end + 3;
+    }
+
+    /**
+     * Returns the position just past the block element starting at the provided
+     * position, or -1 if there is no complete block element there.
+     *
+     * @param html  the HTML being scanned
+     * @param start the position of a {@code <} character
+     * @return the position after the closing tag of the element or -1
+     * @see #BLOCK_ELEMENTS
+     */
+    private static int skipBlockElement(String html, int start) {
+        for (String name : BLOCK_ELEMENTS) {
+            int after = start + 1 + name.length();
+            if (after >= html.length() || !html.regionMatches(true, start + 1, name, 0, name.length())) {
+                continue;
+            }
+            char next = html.charAt(after);
+            if (next != '>' && !isSpace(next)) {
+                continue;
+            }
+            int open = html.indexOf('>', after);
+            if (open < 0) {
+                return -1;
+            }
+            return findClosingTag(html, open + 1, name);
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the position just past the closing tag of the named element,
+     * ignoring anything inside of comments, or -1 if there is no closing tag.
+     *
+     * @param html the HTML being scanned
+     * @param from the position to start searching from
+     * @param name the name of the element
+     * @return the position after the closing tag or -1
+     */
+    private static int findClosingTag(String html, int from, String name) {
+        int length = html.length();
+        while ((from = html.indexOf('<', from)) >= 0) {
+            int comment = skipComment(html, from);
+            if (comment >= 0) {
+                from = comment;
+                continue;
+            }
+            if (from + 1 < length && html.charAt(from + 1) == '/'
+                    && html.regionMatches(true, from + 2, name, 0, name.length())) {
+                int end = from + 2 + name.length();
+                while (end < length && isSpace(html.charAt(end))) {
+                    end++;
+                }
+                if (end < length && html.charAt(end) == '>') {
+                    return end + 1;
+                }
+            }
+            from++;
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the position just past the comment or block element starting at
+     * the provided position, or -1 if neither starts there.
+     *
+     * @param html  the HTML being scanned
+     * @param start the position of a {@code <} character
+     * @return the position after the comment or block element or -1
+     */
+    private static int skipRemoved(String html, int start) {
+        int end = skipComment(html, start);
+        return end < 0 ? skipBlockElement(html, start) : end;
+    }
+
+    /**
+     * Returns the position just past the tag starting at the provided position,
+     * or -1 if the {@code <} character does not start a tag. A tag is at least
+     * one character other than {@code <} followed by the first {@code >}.
+     * Comments and block elements inside of the tag are skipped over, since the
+     * chained passes remove them before looking for tags.
+     *
+     * @param html  the HTML being scanned
+     * @param start the position of a {@code <} character
+     * @return the position after the tag or -1
+     */
+    private static int skipTag(String html, int start) {
+        int length = html.length();
+        boolean empty = true;
+        int i = start + 1;
+        while (i < length) {
+            char c = html.charAt(i);
+            if (c == '<') {
+                i = skipRemoved(html, i);
+                if (i < 0) {
+                    return -1;
+                }
+                continue;
+            }
+            if (c == '>' && !empty) {
+                return i + 1;
+            }
+            empty = false;
+            i++;
+        }
+        return -1;
+    }
+
+    /**
+     * Adds the HREF value of the anchor tag starting at the provided position,
+     * if any, to the collection of URLs. Uses the same rules as
+     * {@link LinkFinder#findUrls(URL, String, Collection)}: the attribute must be
+     * inside the opening tag and its value must be double-quoted.
+     *
+     * @param html  the HTML being scanned
+     * @param start the position of a {@code <} character
+     * @param base  the base URL used to convert relative URLs to absolute
+     * @param urls  the data structure to store found HTTP(S) URLs
+     * @return the position of the quote closing the HREF value, or -1 if no
+     * link was found
+     */
+    private static int findLink(String html, int start, URL base, Collection<URL> urls) {
+        int length = html.length();
+        if (start + 2 >= length || Character.toLowerCase(html.charAt(start + 1)) != 'a') {
+            return -1;
+        }
+        int limit = html.indexOf('>', start + 2);
+        if (limit < 0) {
+            limit = length;
+        }
+        for (int href = start + 3; href + 4 <= limit; href++) {
+            if (!html.regionMatches(true, href, "href", 0, 4)) {
+                continue;
+            }
+            int i = href + 4;
+            while (i < length && isSpace(html.charAt(i))) {
+                i++;
+            }
+            if (i >= length || html.charAt(i) != '=') {
+                continue;
+            }
+            i++;
+            while (i < length && isSpace(html.charAt(i))) {
+                i++;
+            }
+            if (i >= length || html.charAt(i) != '"') {
+                continue;
+            }
+            int quote = html.indexOf('"', i + 1);
+            if (quote > i + 1) {
+                LinkFinder.addUrl(base, html.substring(i + 1, quote), urls);
+                return quote;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Determines whether the character is whitespace as defined by the
+     * {@code \s} regular expression character class.
+     *
+     * @param c the character to check
+     * @return true if the character is whitespace
+     */
+    private static boolean isSpace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+    }
+}
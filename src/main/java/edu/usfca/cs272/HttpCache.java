@@ -0,0 +1,231 @@
+package edu.usfca.cs272;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * An on-disk cache of crawled pages used to make conditional GET requests
+ * when recrawling. Each entry is keyed by the normalized URL and stores the
+ * {@code ETag} and {@code Last-Modified} validators sent by the server along
+ * with the already cleaned text and links of the page, so a 304 (not modified)
+ * response needs no cleaning at all.
+ * <p>
+ * Every entry is stored in its own file, so this class is safe to use from
+ * multiple threads as long as two threads do not store the same URL at once.
+ *
+ * @author Thomas de Laveaga
+ * @see HtmlFetcher#fetchResponse(URL, int, Map, FetchContext)
+ */
+public class HttpCache {
+    /**
+     * Version written at the start of every entry file
+     */
+    private static final int VERSION = 1;
+
+    /**
+     * The directory holding the entry files
+     */
+    private final Path directory;
+
+    /**
+     * Constructs a new instance of this class, creating the directory if needed.
+     *
+     * @param directory the directory to store entries in
+     * @throws IOException if unable to create the directory
+     */
+    public HttpCache(Path directory) throws IOException {
+        this.directory = Files.createDirectories(directory);
+    }
+
+    /**
+     * Gets the cached entry of a URL.
+     *
+     * @param url the URL to look up
+     * @return the cached entry or {@code null} if there is no readable entry
+     */
+    public Entry get(URL url) {
+        String key = key(url);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new GZIPInputStream(Files.newInputStream(path(key)))))) {
+            if (in.readInt() != VERSION || !in.readUTF().equals(key)) {
+                return null; // different format or hash collision
+            }
+            String etag = in.readUTF();
+            String lastModified = in.readUTF();
+            int size = in.readInt();
+            List<String> links = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                links.add(in.readUTF());
+            }
+            byte[] text = new byte[in.readInt()];
+            in.readFully(text);
+            return new Entry(etag, lastModified, new String(text, UTF_8), links);
+        } catch (IOException e) {
+            return null; // missing or damaged entries are both cache misses
+        }
+    }
+
+    /**
+     * Stores the entry of a URL, replacing any existing entry. The file is
+     * written to a temporary file first and then moved into place.
+     *
+     * @param url   the URL of the entry
+     * @param entry the entry to store
+     * @throws IOException if unable to write the entry
+     */
+    public void put(URL url, Entry entry) throws IOException {
+        String key = key(url);
+        Path target = path(key);
+        Path temp = Files.createTempFile(directory, "entry", ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    new GZIPOutputStream(Files.newOutputStream(temp))))) {
+                out.writeInt(VERSION);
+                out.writeUTF(key);
+                out.writeUTF(entry.etag);
+                out.writeUTF(entry.lastModified);
+                out.writeInt(entry.links.size());
+                for (String link : entry.links) {
+                    out.writeUTF(link);
+                }
+                byte[] text = entry.text.getBytes(UTF_8);
+                out.writeInt(text.length);
+                out.write(text);
+            }
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Returns the normalized form of a URL used as the cache key.
+     *
+     * @param url the URL
+     * @return the cache key
+     */
+    private static String key(URL url) {
+        try {
+            return LinkFinder.normalize(url).toString();
+        } catch (IOException | URISyntaxException e) {
+            return url.toString();
+        }
+    }
+
+    /**
+     * Returns the file used to store the entry with the provided key.
+     *
+     * @param key the cache key
+     * @return the path of the entry file
+     */
+    private Path path(String key) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(key.getBytes(UTF_8));
+            StringBuilder name = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                name.append(Character.forDigit((b >> 4) & 0xF, 16));
+                name.append(Character.forDigit(b & 0xF, 16));
+            }
+            return directory.resolve(name.toString());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // every JVM must support SHA-256
+        }
+    }
+
+    /**
+     * A cached page: the validators of the response it came from and the
+     * cleaned text and links of the page.
+     */
+    public static class Entry {
+        /**
+         * The ETag header value, or an empty string if there was none
+         */
+        private final String etag;
+
+        /**
+         * The Last-Modified header value, or an empty string if there was none
+         */
+        private final String lastModified;
+
+        /**
+         * The cleaned text of the page
+         */
+        private final String text;
+
+        /**
+         * The normalized links found on the page
+         */
+        private final List<String> links;
+
+        /**
+         * Constructs a new instance of this class
+         *
+         * @param etag         the ETag header value, or {@code null}
+         * @param lastModified the Last-Modified header value, or {@code null}
+         * @param text         the cleaned text of the page
+         * @param links        the normalized links found on the page
+         */
+        public Entry(String etag, String lastModified, String text, List<String> links) {
+            this.etag = etag == null ? "" : etag;
+            this.lastModified = lastModified == null ? "" : lastModified;
+            this.text = text;
+            this.links = List.copyOf(links);
+        }
+
+        /**
+         * @return true if the entry has at least one validator to revalidate with
+         */
+        public boolean hasValidators() {
+            return !etag.isEmpty() || !lastModified.isEmpty();
+        }
+
+        /**
+         * Returns the conditional request headers used to revalidate this entry.
+         *
+         * @return a map of header names to values
+         */
+        public Map<String, String> getValidators() {
+            Map<String, String> headers = new HashMap<>();
+            if (!etag.isEmpty()) {
+                headers.put("If-None-Match", etag);
+            }
+            if (!lastModified.isEmpty()) {
+                headers.put("If-Modified-Since", lastModified);
+            }
+            return Collections.unmodifiableMap(headers);
+        }
+
+        /**
+         * @return the cleaned text of the page
+         */
+        public String getText() {
+            return text;
+        }
+
+        /**
+         * @return an unmodifiable list of the normalized links found on the page
+         */
+        public List<String> getLinks() {
+            return links;
+        }
+    }
+}
@@ -2,16 +2,17 @@ package edu.usfca.cs272;
 
 import javax.net.SocketFactory;
 import javax.net.ssl.SSLSocketFactory;
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.io.*;
 import java.net.*;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
 import static java.nio.charset.StandardCharsets.UTF_8;
 
 /**
@@ -34,18 +35,17 @@ public class HttpsFetcher {
         try (
                 Socket socket = openConnection(url);
                 PrintWriter request = new PrintWriter(socket.getOutputStream());
-                InputStreamReader input = new InputStreamReader(socket.getInputStream(), UTF_8);
-                BufferedReader response = new BufferedReader(input)
+                InputStream input = new BufferedInputStream(socket.getInputStream())
         ) {
             // make http GET request of the web server
             printGetRequest(request, url);
 
             // the headers will be first in the response
-            Map<String, List<String>> headers = getHeaderFields(response);
+            Map<String, List<String>> headers = getHeaderFields(input);
 
-            // read everything remaining in socket reader as the content
-            List<String> content = response.lines().toList();
-            headers.put("Content", content);
+            // read everything remaining in socket as the (decoded) content
+            InputStreamReader content = new InputStreamReader(getContent(input, headers), UTF_8);
+            headers.put("Content", new BufferedReader(content).lines().toList());
 
             return headers;
         }
@@ -86,6 +86,62 @@ public class HttpsFetcher {
         return factory.createSocket(host, port);
     }
 
+    /**
+     * Uses a {@link Socket} to open a connection to the web server associated
+     * with the provided URL, giving up if connecting takes longer than the
+     * timeout. The timeout is also used as the read timeout of the socket.
+     * Supports HTTP and HTTPS connections.
+     *
+     * @param url     the url to connect
+     * @param timeout the connect and read timeout in milliseconds
+     * @return a socket connection for that url
+     * @throws UnknownHostException   if the host is not known
+     * @throws SocketTimeoutException if unable to connect before the timeout
+     * @throws IOException            if an I/O error occurs when creating the socket
+     * @see #openConnection(URL)
+     */
+    public static Socket openConnection(URL url, int timeout) throws UnknownHostException, IOException {
+        return openConnection(url, timeout, InetAddress.getByName(url.getHost()));
+    }
+
+    /**
+     * Uses a {@link Socket} to open a connection to an already resolved address
+     * of the web server associated with the provided URL, giving up if
+     * connecting takes longer than the timeout. The timeout is also used as the
+     * read timeout of the socket. Supports HTTP and HTTPS connections.
+     *
+     * @param url     the url to connect
+     * @param timeout the connect and read timeout in milliseconds
+     * @param address the address of the host of the url
+     * @return a socket connection for that url
+     * @throws SocketTimeoutException if unable to connect before the timeout
+     * @throws IOException            if an I/O error occurs when creating the socket
+     * @see HostResolver
+     */
+    public static Socket openConnection(URL url, int timeout, InetAddress address) throws IOException {
+        String protocol = url.getProtocol();
+        String host = url.getHost();
+
+        boolean https = protocol != null && protocol.equalsIgnoreCase("https");
+        int defaultPort = https ? 443 : 80;
+        int port = url.getPort() < 0 ? defaultPort : url.getPort();
+
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(address, port), timeout);
+            socket.setSoTimeout(timeout);
+            if (https) {
+                // layered over the connected socket so the host name is still sent for SNI
+                SSLSocketFactory factory = (SSLSocketFactory) SSLSocketFactory.getDefault();
+                return factory.createSocket(socket, host, port, true);
+            }
+            return socket;
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
     /**
      * Writes a simple HTTP GET request to the provided socket writer.
      *
@@ -94,11 +150,28 @@ public class HttpsFetcher {
      * @throws IOException if unable to write request to socket
      */
     public static void printGetRequest(PrintWriter writer, URL url) throws IOException {
+        printGetRequest(writer, url, Map.of());
+    }
+
+    /**
+     * Writes a simple HTTP GET request with extra header fields (such as
+     * conditional request validators) to the provided socket writer.
+     *
+     * @param writer  a writer created from a socket connection
+     * @param url     the url to fetch via the socket connection
+     * @param headers extra header names mapped to their values
+     * @throws IOException if unable to write request to socket
+     */
+    public static void printGetRequest(PrintWriter writer, URL url, Map<String, String> headers) throws IOException {
         String host = url.getHost();
         String resource = url.getFile().isEmpty() ? "/" : url.getFile();
 
         writer.printf("GET %s HTTP/1.1\r\n", resource);
         writer.printf("Host: %s\r\n", host);
+        writer.printf("Accept-Encoding: gzip, deflate\r\n");
+        for (var header : headers.entrySet()) {
+            writer.printf("%s: %s\r\n", header.getKey(), header.getValue());
+        }
         writer.printf("Connection: close\r\n");
         writer.printf("\r\n");
         writer.flush();
@@ -123,13 +196,241 @@ public class HttpsFetcher {
 
         // remaining lines until first blank line are the other headers
         while ((line = response.readLine()) != null && !line.isBlank()) {
-            String[] split = line.split(":\\s+", 2);
-            assert split.length == 2;
+            addHeaderField(results, line);
+        }
+
+        return results;
+    }
+
+    /**
+     * Gets the header fields from the raw input stream of a socket connection,
+     * leaving the stream positioned at the start of the content. Requires that
+     * the stream has not yet been used. The stream should be buffered, since
+     * the headers are read one byte at a time.
+     *
+     * @param response a buffered input stream created from a socket connection
+     * @return a map of header fields to a list of header values
+     * @throws IOException if unable to read from socket
+     * @see #getHeaderFields(BufferedReader)
+     */
+    public static Map<String, List<String>> getHeaderFields(InputStream response) throws IOException {
+        Map<String, List<String>> results = new HashMap<>();
+
+        String line = readLine(response);
+        results.put(null, List.of(line == null ? "" : line));
+
+        while ((line = readLine(response)) != null && !line.isBlank()) {
+            addHeaderField(results, line);
+        }
 
+        return results;
+    }
+
+    /**
+     * Returns the first value of a header, ignoring the case of the header name.
+     *
+     * @param headers the HTTP/1.1 headers to search
+     * @param name    the name of the header
+     * @return the first value of the header or {@code null} if not present
+     */
+    public static String getHeader(Map<String, List<String>> headers, String name) {
+        for (var entry : headers.entrySet()) {
+            if (name.equalsIgnoreCase(entry.getKey()) && !entry.getValue().isEmpty()) {
+                return entry.getValue().get(0);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns {@code true} if the response content uses a gzip or deflate
+     * content encoding.
+     *
+     * @param headers the HTTP/1.1 headers to check
+     * @return {@code true} if the content is compressed
+     */
+    public static boolean isCompressed(Map<String, List<String>> headers) {
+        String encoding = getHeader(headers, "Content-Encoding");
+        return encoding != null && encoding.trim().toLowerCase().matches("(x-)?gzip|deflate");
+    }
+
+    /**
+     * Wraps the stream remaining after the headers so that reading from it
+     * returns the decoded content. Removes a chunked transfer encoding and
+     * decompresses gzip or deflate content encodings while reading.
+     *
+     * @param response the input stream positioned at the start of the content
+     * @param headers  the headers of the response
+     * @return a stream of the decoded content
+     * @throws IOException if unable to read the compression header
+     */
+    public static InputStream getContent(InputStream response, Map<String, List<String>> headers) throws IOException {
+        InputStream content = response;
+
+        String transfer = getHeader(headers, "Transfer-Encoding");
+        if (transfer != null && transfer.toLowerCase().contains("chunked")) {
+            content = new ChunkedInputStream(content);
+        }
+
+        String encoding = getHeader(headers, "Content-Encoding");
+        if (encoding == null) {
+            return content;
+        }
+        encoding = encoding.trim().toLowerCase();
+        if (encoding.equals("gzip") || encoding.equals("x-gzip")) {
+            return new GZIPInputStream(content);
+        }
+        if (encoding.equals("deflate")) {
+            // deflate should be zlib wrapped, but some servers send raw deflate
+            PushbackInputStream pushback = new PushbackInputStream(content, 2);
+            byte[] header = pushback.readNBytes(2);
+            pushback.unread(header);
+            boolean zlib = header.length == 2 && (header[0] & 0x0F) == 8
+                    && (((header[0] & 0xFF) << 8) | (header[1] & 0xFF)) % 31 == 0;
+            return new InflaterInputStream(pushback, new Inflater(!zlib));
+        }
+        return content;
+    }
+
+    /**
+     * Adds a single "Name: value" header line to the map of header fields.
+     *
+     * @param results the map of header fields to a list of header values
+     * @param line    the header line
+     */
+    private static void addHeaderField(Map<String, List<String>> results, String line) {
+        String[] split = line.split(":\\s*", 2);
+        if (split.length == 2) {
             results.putIfAbsent(split[0], new ArrayList<>());
             results.get(split[0]).add(split[1]);
         }
+    }
 
-        return results;
+    /**
+     * Reads a single CRLF or LF terminated line of ISO-8859-1 text.
+     *
+     * @param input the stream to read from
+     * @return the line without the line terminator, or {@code null} at the end
+     * of the stream
+     * @throws IOException if unable to read from the stream
+     */
+    private static String readLine(InputStream input) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(64);
+        int b;
+        while ((b = input.read()) >= 0 && b != '\n') {
+            line.write(b);
+        }
+        if (b < 0 && line.size() == 0) {
+            return null;
+        }
+        String text = line.toString(ISO_8859_1);
+        return text.endsWith("\r") ? text.substring(0, text.length() - 1) : text;
+    }
+
+    /**
+     * Removes the HTTP/1.1 chunked transfer encoding from a stream.
+     */
+    private static class ChunkedInputStream extends FilterInputStream {
+        /**
+         * Bytes left in the current chunk, 0 before reading the first chunk
+         * size, or -1 after the last chunk
+         */
+        private long remaining;
+
+        /**
+         * Constructs a new instance of this class
+         *
+         * @param input the stream positioned at the first chunk size
+         */
+        private ChunkedInputStream(InputStream input) {
+            super(input);
+            this.remaining = 0;
+        }
+
+        /**
+         * Reads the next chunk size if the current chunk is used up.
+         *
+         * @return true if there are bytes left to read
+         * @throws IOException if unable to read or the chunk size is invalid
+         */
+        private boolean nextChunk() throws IOException {
+            if (remaining > 0) {
+                return true;
+            }
+            if (remaining < 0) {
+                return false;
+            }
+            String line = readLine(in);
+            if (line != null && line.isEmpty()) {
+                line = readLine(in); // the CRLF after the previous chunk
+            }
+            if (line == null) {
+                remaining = -1;
+                return false;
+            }
+            int extension = line.indexOf(';');
+            String size = (extension < 0 ? line : line.substring(0, extension)).trim();
+            try {
+                remaining = Long.parseLong(size, 16);
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid chunk size: " + line);
+            }
+            if (remaining == 0) {
+                // skip any trailers up to the final blank line
+                while ((line = readLine(in)) != null && !line.isEmpty()) {
+                    continue;
+                }
+                remaining = -1;
+                return false;
+            }
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!nextChunk()) {
+                return -1;
+            }
+            int b = in.read();
+            if (b >= 0) {
+                remaining--;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            if (!nextChunk()) {
+                return -1;
+            }
+            int read = in.read(buffer, offset, (int) Math.min(length, remaining));
+            if (read > 0) {
+                remaining -= read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            if (n <= 0 || !nextChunk()) {
+                return 0;
+            }
+            long skipped = in.skip(Math.min(n, remaining));
+            remaining -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return remaining > 0 ? (int) Math.min(in.available(), remaining) : 0;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,541 @@
+package edu.usfca.cs272;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.zip.GZIPInputStream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Reads an inverted index back from the JSON written by
+ * {@link PrettyJsonWriter#invertedWordIndexToJSON(java.util.Map, Path)} one
+ * token at a time, without building the whole document in memory. Words,
+ * their locations and the positions at each location are pulled in the order
+ * they appear in the file:
+ * <pre>
+ * String word;
+ * while ((word = reader.nextWord()) != null) {
+ *     String location;
+ *     while ((location = reader.nextLocation()) != null) {
+ *         while (reader.hasPosition()) {
+ *             int position = reader.nextPosition();
+ *         }
+ *     }
+ * }
+ * </pre>
+ * Whitespace between tokens is ignored, and several index objects may follow
+ * each other, so the pretty, minified and NDJSON layouts of {@link OutputFormat}
+ * can all be read. Files starting with the gzip magic number are decompressed.
+ * <p>
+ * Warning: This class is not thread-safe.
+ *
+ * @author Thomas de Laveaga
+ * @see InvertedWordIndex#readJSON(Path)
+ */
+public class IndexJsonReader implements Closeable {
+    /**
+     * Number of chars read from the underlying reader at a time
+     */
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /**
+     * Where the reader is in the structure of the index
+     */
+    private enum State {
+        /**
+         * Between index objects, expecting '{' or the end of the input
+         */
+        OUTSIDE,
+
+        /**
+         * Inside an index object, expecting a word or '}'
+         */
+        IN_INDEX,
+
+        /**
+         * Inside the locations of a word, expecting a location or '}'
+         */
+        IN_WORD,
+
+        /**
+         * Inside the positions of a location, expecting a position or ']'
+         */
+        IN_POSITIONS
+    }
+
+    /**
+     * The reader the JSON is read from
+     */
+    private final Reader in;
+
+    /**
+     * Chars read but not consumed yet
+     */
+    private final char[] buffer;
+
+    /**
+     * Index of the next char to consume in the buffer
+     */
+    private int position;
+
+    /**
+     * Number of chars in the buffer
+     */
+    private int limit;
+
+    /**
+     * Number of chars consumed before the start of the buffer, for error messages
+     */
+    private long offset;
+
+    /**
+     * Holds the chars of a string while it is read
+     */
+    private final StringBuilder text;
+
+    /**
+     * Holds the positions of a location while {@link #readPositions()} reads them
+     */
+    private int[] values;
+
+    /**
+     * Where the reader is in the structure of the index
+     */
+    private State state;
+
+    /**
+     * Whether nothing has been read yet from the current object or array, so
+     * no comma is expected before the next member or element
+     */
+    private boolean first;
+
+    /**
+     * Constructs a new instance of this class
+     *
+     * @param in the reader to read the JSON from
+     */
+    public IndexJsonReader(Reader in) {
+        this.in = in;
+        this.buffer = new char[BUFFER_SIZE];
+        this.text = new StringBuilder();
+        this.values = new int[64];
+        this.state = State.OUTSIDE;
+    }
+
+    /**
+     * Opens a JSON index file, decompressing it if it is gzip-compressed.
+     *
+     * @param path the file to read
+     * @return a reader of the file, which must be closed
+     * @throws IOException if unable to open the file
+     */
+    public static IndexJsonReader open(Path path) throws IOException {
+        InputStream input = new BufferedInputStream(Files.newInputStream(path), BUFFER_SIZE);
+        try {
+            input.mark(2);
+            int magic = input.read() | input.read() << 8;
+            input.reset();
+            if (magic == GZIPInputStream.GZIP_MAGIC) {
+                input = new GZIPInputStream(input, BUFFER_SIZE);
+            }
+            return new IndexJsonReader(new InputStreamReader(input, UTF_8));
+        } catch (IOException e) {
+            input.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Moves to the next word of the index.
+     *
+     * @return the next word, or null at the end of the input
+     * @throws IOException if unable to read or the JSON is not an index
+     * @throws IllegalStateException if the locations of the previous word were not all read
+     */
+    public String nextWord() throws IOException {
+        while (true) {
+            if (state == State.OUTSIDE) {
+                if (peek() < 0) {
+                    return null;
+                }
+                expect('{');
+                state = State.IN_INDEX;
+                first = true;
+            } else if (state != State.IN_INDEX) {
+                throw new IllegalStateException("The locations of the previous word were not all read");
+            } else if (peek() == '}') {
+                position++;
+                state = State.OUTSIDE;
+            } else {
+                String word = readKey();
+                expect('{');
+                state = State.IN_WORD;
+                first = true;
+                return word;
+            }
+        }
+    }
+
+    /**
+     * Moves to the next location of the current word.
+     *
+     * @return the next location, or null once every location of the word was read
+     * @throws IOException if unable to read or the JSON is not an index
+     * @throws IllegalStateException if not reading the locations of a word
+     */
+    public String nextLocation() throws IOException {
+        if (state != State.IN_WORD) {
+            throw new IllegalStateException("Not reading the locations of a word");
+        }
+        if (peek() == '}') {
+            position++;
+            state = State.IN_INDEX;
+            first = false;
+            return null;
+        }
+        String location = readKey();
+        expect('[');
+        state = State.IN_POSITIONS;
+        first = true;
+        return location;
+    }
+
+    /**
+     * Determines whether the current location has another position.
+     *
+     * @return true if {@link #nextPosition()} can be called, false once every
+     * position of the location was read
+     * @throws IOException if unable to read or the JSON is not an index
+     * @throws IllegalStateException if not reading the positions of a location
+     */
+    public boolean hasPosition() throws IOException {
+        if (state != State.IN_POSITIONS) {
+            throw new IllegalStateException("Not reading the positions of a location");
+        }
+        if (peek() == ']') {
+            position++;
+            state = State.IN_WORD;
+            first = false;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Reads the next position of the current location. Must follow a call to
+     * {@link #hasPosition()} that returned true.
+     *
+     * @return the position
+     * @throws IOException if unable to read or the JSON is not an index
+     */
+    public int nextPosition() throws IOException {
+        if (!first) {
+            expect(',');
+            peek();
+        }
+        first = false;
+        boolean negative = false;
+        if (position < limit && buffer[position] == '-') {
+            negative = true;
+            position++;
+        }
+        long value = 0;
+        int digits = 0;
+        while (position < limit || fill()) {
+            char c = buffer[position];
+            if (c < '0' || c > '9') {
+                break;
+            }
+            value = value * 10 + (c - '0');
+            if (value > (long) Integer.MAX_VALUE + 1) {
+                throw malformed("a position that fits in an int");
+            }
+            position++;
+            digits++;
+        }
+        if (digits == 0 || (!negative && value > Integer.MAX_VALUE)) {
+            throw malformed("a position");
+        }
+        return (int) (negative ? -value : value);
+    }
+
+    /**
+     * Reads every remaining position of the current location into a new set.
+     * Positions are written in ascending order, in which case the set is built
+     * in linear time instead of one insertion at a time.
+     *
+     * @return the positions
+     * @throws IOException if unable to read or the JSON is not an index
+     */
+    public TreeSet<Integer> readPositions() throws IOException {
+        int count = 0;
+        boolean ascending = true;
+        while (hasPosition()) {
+            int value = nextPosition();
+            if (count == values.length) {
+                values = Arrays.copyOf(values, count * 2);
+            }
+            if (count > 0 && value <= values[count - 1]) {
+                ascending = false;
+            }
+            values[count++] = value;
+        }
+        TreeSet<Integer> positions = new TreeSet<>();
+        if (ascending) {
+            positions.addAll(new AscendingPositions(values, count)); // TreeSet builds from a SortedSet in linear time
+        } else {
+            for (int i = 0; i < count; i++) {
+                positions.add(values[i]);
+            }
+        }
+        return positions;
+    }
+
+    /**
+     * Reads a member key and the colon after it, with the comma before it if
+     * it is not the first member.
+     *
+     * @return the key
+     * @throws IOException if unable to read or the JSON is not an index
+     */
+    private String readKey() throws IOException {
+        if (!first) {
+            expect(',');
+        }
+        first = false;
+        String key = readString();
+        expect(':');
+        return key;
+    }
+
+    /**
+     * Reads a quoted string, unescaping any escape sequences.
+     *
+     * @return the string
+     * @throws IOException if unable to read or the string is not valid JSON
+     */
+    private String readString() throws IOException {
+        expect('"');
+        text.setLength(0);
+        while (true) {
+            int start = position;
+            while (position < limit && buffer[position] != '"' && buffer[position] != '\\') {
+                position++;
+            }
+            text.append(buffer, start, position - start);
+            if (position == limit) {
+                if (!fill()) {
+                    throw malformed("the end of a string");
+                }
+                continue;
+            }
+            if (buffer[position++] == '"') {
+                return text.toString();
+            }
+            text.append(readEscape());
+        }
+    }
+
+    /**
+     * Reads the rest of an escape sequence after its backslash.
+     *
+     * @return the escaped char
+     * @throws IOException if unable to read or the escape is not valid JSON
+     */
+    private char readEscape() throws IOException {
+        char c = read();
+        return switch (c) {
+            case '"', '\\', '/' -> c;
+            case 'b' -> '\b';
+            case 'f' -> '\f';
+            case 'n' -> '\n';
+            case 'r' -> '\r';
+            case 't' -> '\t';
+            case 'u' -> {
+                int value = 0;
+                for (int i = 0; i < 4; i++) {
+                    int digit = Character.digit(read(), 16);
+                    if (digit < 0) {
+                        throw malformed("a hexadecimal digit");
+                    }
+                    value = value * 16 + digit;
+                }
+                yield (char) value;
+            }
+            default -> throw malformed("an escape sequence");
+        };
+    }
+
+    /**
+     * Skips whitespace and consumes the expected char.
+     *
+     * @param expected the char that must come next
+     * @throws IOException if unable to read or a different char comes next
+     */
+    private void expect(char expected) throws IOException {
+        if (peek() != expected) {
+            throw malformed("'" + expected + "'");
+        }
+        position++;
+    }
+
+    /**
+     * Consumes the next char, whitespace or not.
+     *
+     * @return the char
+     * @throws IOException if unable to read or at the end of the input
+     */
+    private char read() throws IOException {
+        if (position == limit && !fill()) {
+            throw malformed("more input");
+        }
+        return buffer[position++];
+    }
+
+    /**
+     * Skips whitespace and returns the next char without consuming it.
+     *
+     * @return the next char, or -1 at the end of the input
+     * @throws IOException if unable to read
+     */
+    private int peek() throws IOException {
+        while (position < limit || fill()) {
+            char c = buffer[position];
+            if (c != ' ' && c != '\n' && c != '\r' && c != '\t') {
+                return c;
+            }
+            position++;
+        }
+        return -1;
+    }
+
+    /**
+     * Reads more chars into the buffer once every buffered char was consumed.
+     *
+     * @return false at the end of the input
+     * @throws IOException if unable to read
+     */
+    private boolean fill() throws IOException {
+        offset += limit;
+        position = 0;
+        limit = Math.max(0, in.read(buffer));
+        return limit > 0;
+    }
+
+    /**
+     * Creates the exception thrown when the input is not what was expected.
+     *
+     * @param expected a description of what was expected
+     * @return the exception
+     */
+    private IOException malformed(String expected) {
+        return new IOException("Malformed index JSON at char " + (offset + position) + ": expected " + expected);
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    /**
+     * A sorted view of strictly ascending positions, only meant to be passed to
+     * {@link TreeSet#addAll(java.util.Collection)} so the set is built in
+     * linear time. The range views are not supported.
+     */
+    private static class AscendingPositions extends AbstractSet<Integer> implements SortedSet<Integer> {
+        /**
+         * The positions, in strictly ascending order
+         */
+        private final int[] values;
+
+        /**
+         * Number of positions in the array
+         */
+        private final int count;
+
+        /**
+         * Constructs a new instance of this class
+         *
+         * @param values the positions, in strictly ascending order
+         * @param count  number of positions in the array
+         */
+        private AscendingPositions(int[] values, int count) {
+            this.values = values;
+            this.count = count;
+        }
+
+        @Override
+        public Iterator<Integer> iterator() {
+            return new Iterator<>() {
+                private int next = 0;
+
+                @Override
+                public boolean hasNext() {
+                    return next < count;
+                }
+
+                @Override
+                public Integer next() {
+                    if (next == count) {
+                        throw new NoSuchElementException();
+                    }
+                    return values[next++];
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return count;
+        }
+
+        @Override
+        public Comparator<? super Integer> comparator() {
+            return null;
+        }
+
+        @Override
+        public Integer first() {
+            if (count == 0) {
+                throw new NoSuchElementException();
+            }
+            return values[0];
+        }
+
+        @Override
+        public Integer last() {
+            if (count == 0) {
+                throw new NoSuchElementException();
+            }
+            return values[count - 1];
+        }
+
+        @Override
+        public SortedSet<Integer> subSet(Integer fromElement, Integer toElement) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public SortedSet<Integer> headSet(Integer toElement) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public SortedSet<Integer> tailSet(Integer fromElement) {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -1,6 +1,8 @@
 package edu.usfca.cs272;
 
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
 import java.io.Writer;
 import java.nio.file.Path;
@@ -91,42 +93,66 @@ public class InvertedWordIndex {
     }
 
     /**
-     * Adds everything in the provided InvertedWordIndex to this object's WordMap and WordCount
+     * Adds everything in the provided InvertedWordIndex to this object's WordMap and WordCount. Like
+     * {@link #add(String, String, Integer)}, only positions that are new are counted, so adding the same
+     * words again, such as a page replayed from a log and then indexed again, does not change the counts.
      *
      * @param srcIndex Source index
      */
     public void addAll(InvertedWordIndex srcIndex) {
-        // 1. copy over word entries from source index to destination index
+        // 1. copy over word entries from source index to destination index, counting the new positions
+        HashMap<String, Integer> added = new HashMap<>();
         for (var srcWordEntry : srcIndex.wordMap.entrySet()) {
             String word = srcWordEntry.getKey();
-            if (this.contains(word)) {
-                TreeMap<String, TreeSet<Integer>> destLocations = this.wordMap.get(word);
+            // looked up directly, since a subclass may lock in contains()
+            TreeMap<String, TreeSet<Integer>> destLocations = this.wordMap.get(word);
+            if (destLocations != null) {
                 for (var srcLocationEntry : srcWordEntry.getValue().entrySet()) {
                     String srcLocation = srcLocationEntry.getKey();
-                    if (destLocations.containsKey(srcLocation)) {
-                        Set<Integer> srcPositions = srcLocationEntry.getValue();
-                        destLocations.get(srcLocation).addAll(srcPositions);
+                    TreeSet<Integer> destPositions = destLocations.get(srcLocation);
+                    if (destPositions != null) {
+                        int before = destPositions.size();
+                        destPositions.addAll(srcLocationEntry.getValue());
+                        added.merge(srcLocation, destPositions.size() - before, Integer::sum);
                     } else {
                         destLocations.put(srcLocation, srcLocationEntry.getValue());
+                        added.merge(srcLocation, srcLocationEntry.getValue().size(), Integer::sum);
                     }
                 }
             } else {
                 this.wordMap.put(word, srcWordEntry.getValue());
+                for (var srcLocationEntry : srcWordEntry.getValue().entrySet()) {
+                    added.merge(srcLocationEntry.getKey(), srcLocationEntry.getValue().size(), Integer::sum);
+                }
             }
         }
-        // 2. copy over wordCounts
-        for (var countEntry : srcIndex.wordCount.entrySet()) {
-            String location = countEntry.getKey();
-            if (this.wordCount.containsKey(location)) {
-                Integer destLocationsWordCount = wordCount.get(location);
-                Integer srcLocationsWordCount = countEntry.getValue();
-                this.wordCount.put(location, destLocationsWordCount + srcLocationsWordCount);
-            } else {
-                this.wordCount.put(location, countEntry.getValue());
+        // 2. count the new positions of each location
+        for (var addedEntry : added.entrySet()) {
+            if (addedEntry.getValue() > 0) {
+                increment(addedEntry.getKey(), addedEntry.getValue());
             }
         }
     }
 
+    /**
+     * Returns a copy of this index that shares no maps or sets with it, so changing one does not change
+     * the other.
+     *
+     * @return a deep copy of this index
+     */
+    public InvertedWordIndex copy() {
+        InvertedWordIndex copy = new InvertedWordIndex();
+        for (var wordEntry : wordMap.entrySet()) {
+            TreeMap<String, TreeSet<Integer>> locations = new TreeMap<>();
+            for (var locationEntry : wordEntry.getValue().entrySet()) {
+                locations.put(locationEntry.getKey(), new TreeSet<>(locationEntry.getValue()));
+            }
+            copy.wordMap.put(wordEntry.getKey(), locations);
+        }
+        copy.wordCount.putAll(wordCount);
+        return copy;
+    }
+
     /**
      * Check if the wordMap contains a word
      *
@@ -280,6 +306,100 @@ public class InvertedWordIndex {
     }
 
 
+    /**
+     * Searches a batch of queries. Every distinct word of the batch is looked
+     * up once, and for partial search every distinct prefix is matched against
+     * the index once; the matching locations and counts are then shared by
+     * every query of the batch that uses them. The results of each query are
+     * the same as those of {@link #search(Set, boolean)}.
+     *
+     * @param queries     the queries to search, each a set of stemmed words
+     * @param exactSearch true for exact, false for partial
+     * @return the results of each query, in the order of the queries
+     */
+    public List<List<SearchResult>> searchAll(List<? extends Set<String>> queries, boolean exactSearch) {
+        Map<String, Postings> postings = new HashMap<>();
+        Map<String, List<String>> prefixes = new HashMap<>();
+        List<List<SearchResult>> batch = new ArrayList<>(queries.size());
+
+        for (Set<String> query : queries) {
+            List<SearchResult> results = new ArrayList<>();
+            Map<String, SearchResult> resultsMap = new HashMap<>();
+            for (String queryWord : query) {
+                if (exactSearch) {
+                    addPostings(postings.computeIfAbsent(queryWord, this::postings), resultsMap, results);
+                } else {
+                    for (String word : prefixes.computeIfAbsent(queryWord, this::wordsStartingWith)) {
+                        addPostings(postings.computeIfAbsent(word, this::postings), resultsMap, results);
+                    }
+                }
+            }
+            Collections.sort(results);
+            batch.add(results);
+        }
+        return batch;
+    }
+
+    /**
+     * Finds every word in the index that starts with a prefix, the same way
+     * {@link #partialSearch(Set)} does.
+     *
+     * @param prefix the prefix
+     * @return the matching words, in sorted order
+     */
+    private List<String> wordsStartingWith(String prefix) {
+        List<String> words = new ArrayList<>();
+        for (String word : wordMap.tailMap(prefix).keySet()) {
+            if (!word.startsWith(prefix)) {
+                break;
+            }
+            words.add(word);
+        }
+        return words;
+    }
+
+    /**
+     * Collects the locations of a word and how many times it appears at each.
+     *
+     * @param word the word
+     * @return the postings of the word, empty if it is not in the index
+     */
+    private Postings postings(String word) {
+        TreeMap<String, TreeSet<Integer>> locations = wordMap.get(word);
+        if (locations == null) {
+            return Postings.EMPTY;
+        }
+        String[] where = new String[locations.size()];
+        int[] counts = new int[locations.size()];
+        int i = 0;
+        for (Map.Entry<String, TreeSet<Integer>> entry : locations.entrySet()) {
+            where[i] = entry.getKey();
+            counts[i++] = entry.getValue().size();
+        }
+        return new Postings(where, counts);
+    }
+
+    /**
+     * Adds the postings of a word to the results of a query, in the same order
+     * {@link #searchHelper(String, Map, List)} does.
+     *
+     * @param postings   the postings of the word
+     * @param resultsMap Helper data structure for efficiently updating SearchResults
+     * @param results    the list of searchResults to add to
+     */
+    private void addPostings(Postings postings, Map<String, SearchResult> resultsMap, List<SearchResult> results) {
+        for (int i = 0; i < postings.locations.length; i++) {
+            String location = postings.locations[i];
+            SearchResult searchResult = resultsMap.get(location);
+            if (searchResult == null) {
+                searchResult = new SearchResult(location);
+                resultsMap.put(location, searchResult);
+                results.add(searchResult);
+            }
+            searchResult.add(postings.counts[i]);
+        }
+    }
+
     /**
      * Helper method that calls either exact or partial search
      *
@@ -351,6 +471,35 @@ public class InvertedWordIndex {
         PrettyJsonWriter.invertedWordIndexToJSON(wordMap, path);
     }
 
+    /**
+     * Writes this index to file as JSON, turning ranges of words into JSON in
+     * parallel on the work queue. The file is the same as the one written by
+     * {@link #toJSON(Path)}.
+     *
+     * @param path      the path to output the json file to
+     * @param workQueue the work queue to use
+     * @throws IOException if unable to write the file
+     * @see PrettyJsonWriter#invertedWordIndexToJSON(java.util.NavigableMap, Path, WorkQueue)
+     */
+    public void toJSON(Path path, WorkQueue workQueue) throws IOException {
+        PrettyJsonWriter.invertedWordIndexToJSON(wordMap, path, workQueue);
+    }
+
+    /**
+     * Writes this index as JSON in the given format.
+     *
+     * @param writer the {@link Writer} to use
+     * @param format the layout of the JSON
+     * @throws IOException if the writer throws and IOException
+     */
+    public void toJSON(Writer writer, OutputFormat format) throws IOException {
+        switch (format) {
+            case PRETTY -> PrettyJsonWriter.invertedWordIndexToJSON(wordMap, writer, 0);
+            case MINIFIED -> CompactJsonWriter.invertedWordIndexToJSON(wordMap, writer, false);
+            case NDJSON -> CompactJsonWriter.invertedWordIndexToJSON(wordMap, writer, true);
+        }
+    }
+
     /**
      * Converts the current word count to JSON
      *
@@ -361,6 +510,123 @@ public class InvertedWordIndex {
         PrettyJsonWriter.writeObject(wordCount, output);
     }
 
+    /**
+     * Writes the current word count as JSON in the given format.
+     *
+     * @param writer the {@link Writer} to use
+     * @param format the layout of the JSON
+     * @throws IOException if the writer throws an Exception
+     */
+    public void wordCountToJSON(Writer writer, OutputFormat format) throws IOException {
+        switch (format) {
+            case PRETTY -> PrettyJsonWriter.writeObject(wordCount, writer, 0);
+            case MINIFIED -> CompactJsonWriter.writeObject(wordCount, writer, false);
+            case NDJSON -> CompactJsonWriter.writeObject(wordCount, writer, true);
+        }
+    }
+
+    /**
+     * Writes this index in a compact binary form that can be read back with
+     * {@link #read(DataInput)}. Positions are written as the difference from the
+     * previous position in the same location.
+     *
+     * @param out the output to write to
+     * @throws IOException if the output throws an IOException
+     */
+    public void write(DataOutput out) throws IOException {
+        out.writeInt(wordMap.size());
+        for (var wordEntry : wordMap.entrySet()) {
+            out.writeUTF(wordEntry.getKey());
+            out.writeInt(wordEntry.getValue().size());
+            for (var locationEntry : wordEntry.getValue().entrySet()) {
+                out.writeUTF(locationEntry.getKey());
+                out.writeInt(locationEntry.getValue().size());
+                int previous = 0;
+                for (int position : locationEntry.getValue()) {
+                    out.writeInt(position - previous);
+                    previous = position;
+                }
+            }
+        }
+        out.writeInt(wordCount.size());
+        for (var countEntry : wordCount.entrySet()) {
+            out.writeUTF(countEntry.getKey());
+            out.writeInt(countEntry.getValue());
+        }
+    }
+
+    /**
+     * Reads an index written by {@link #write(DataOutput)}. The result is a new
+     * index; use {@link #addAll(InvertedWordIndex)} to merge it into another.
+     *
+     * @param in the input to read from
+     * @return the index that was read
+     * @throws IOException if the input throws an IOException or ends early
+     */
+    public static InvertedWordIndex read(DataInput in) throws IOException {
+        InvertedWordIndex index = new InvertedWordIndex();
+        int words = in.readInt();
+        for (int i = 0; i < words; i++) {
+            TreeMap<String, TreeSet<Integer>> locations = new TreeMap<>();
+            index.wordMap.put(in.readUTF(), locations);
+            int locationCount = in.readInt();
+            for (int j = 0; j < locationCount; j++) {
+                TreeSet<Integer> positions = new TreeSet<>();
+                locations.put(in.readUTF(), positions);
+                int positionCount = in.readInt();
+                int position = 0;
+                for (int k = 0; k < positionCount; k++) {
+                    position += in.readInt();
+                    positions.add(position);
+                }
+            }
+        }
+        int locations = in.readInt();
+        for (int i = 0; i < locations; i++) {
+            index.wordCount.put(in.readUTF(), in.readInt());
+        }
+        return index;
+    }
+
+    /**
+     * Reads an index back from a JSON file written by {@link #toJSON(Path)} or
+     * in any of the {@link OutputFormat}s, gzip-compressed or not. The word
+     * count of each location is rebuilt from the positions recorded there, just
+     * as {@link #add(String, String, Integer)} counts them.
+     *
+     * @param path the JSON file to read
+     * @return the index read from the file
+     * @throws IOException if unable to read the file or it does not hold an index
+     * @see IndexJsonReader
+     */
+    public static InvertedWordIndex readJSON(Path path) throws IOException {
+        InvertedWordIndex index = new InvertedWordIndex();
+        // the same locations appear under many words, so keep one copy of each
+        HashMap<String, String> canonical = new HashMap<>();
+        try (IndexJsonReader reader = IndexJsonReader.open(path)) {
+            String word;
+            while ((word = reader.nextWord()) != null) {
+                TreeMap<String, TreeSet<Integer>> locations = index.wordMap.computeIfAbsent(word, w -> new TreeMap<>());
+                String location;
+                while ((location = reader.nextLocation()) != null) {
+                    location = canonical.computeIfAbsent(location, l -> l);
+                    TreeSet<Integer> read = reader.readPositions();
+                    TreeSet<Integer> positions = locations.putIfAbsent(location, read);
+                    int added = read.size();
+                    if (positions != null) { // the location was listed twice for this word
+                        int before = positions.size();
+                        positions.addAll(read);
+                        added = positions.size() - before;
+                    }
+                    if (added > 0) {
+                        index.increment(location, added);
+                    }
+                }
+            }
+        }
+        return index;
+    }
+
     /**
      * A data structure to hold a search result.
      */
@@ -395,7 +661,16 @@ public class InvertedWordIndex {
          * @param queryWord the queryWord to get the new count of
          */
         private void update(String queryWord) {
-            this.count += wordMap.get(queryWord).get(where).size();
+            add(wordMap.get(queryWord).get(where).size());
+        }
+
+        /**
+         * Adds matches to the count and updates the score
+         *
+         * @param matches the number of times a query word was found at this location
+         */
+        private void add(int matches) {
+            this.count += matches;
             this.score = (this.count / Double.valueOf(wordCount.get(this.where)));
         }
 
@@ -438,5 +713,36 @@ public class InvertedWordIndex {
             return where;
         }
     }
-}
 
+    /**
+     * The locations of a word and how many times it appears at each, in
+     * location order
+     */
+    private static class Postings {
+        /**
+         * Postings of a word that is not in the index
+         */
+        private static final Postings EMPTY = new Postings(new String[0], new int[0]);
+
+        /**
+         * The locations of the word
+         */
+        private final String[] locations;
+
+        /**
+         * How many times the word appears at each location
+         */
+        private final int[] counts;
+
+        /**
+         * Constructs a new instance of this class
+         *
+         * @param locations the locations of the word
+         * @param counts    how many times the word appears at each location
+         */
+        private Postings(String[] locations, int[] counts) {
+            this.locations = locations;
+            this.counts = counts;
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package edu.usfca.cs272;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts durations in buckets that double in size, so recording is a few
+ * counter increments no matter how many durations are recorded. Bucket 0 holds
+ * durations of zero and bucket {@code i} holds durations from 2<sup>i-1</sup>
+ * up to 2<sup>i</sup> - 1 nanoseconds. Percentiles are reported as the upper
+ * bound of the bucket they fall in, so they are at most twice the real value.
+ * <p>
+ * The counters are {@link LongAdder}s, so threads recording at the same time do
+ * not contend on one shared counter. This class is thread safe.
+ *
+ * @author Thomas de Laveaga
+ * @see ReadWriteLock.Stats
+ * @see WorkQueue.Stats
+ */
+public class LatencyHistogram {
+    /**
+     * Number of buckets, one for zero and one for every bit of a long
+     */
+    private static final int BUCKETS = Long.SIZE + 1;
+
+    /**
+     * Number of durations recorded in each bucket
+     */
+    private final LongAdder[] counts;
+
+    /**
+     * Sum of every recorded duration, in nanoseconds
+     */
+    private final LongAdder total;
+
+    /**
+     * The longest recorded duration, in nanoseconds
+     */
+    private final LongAccumulator max;
+
+    /**
+     * Constructs a new, empty histogram
+     */
+    public LatencyHistogram() {
+        this.counts = new LongAdder[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = new LongAdder();
+        }
+        this.total = new LongAdder();
+        this.max = new LongAccumulator(Math::max, 0);
+    }
+
+    /**
+     * Records a duration. Negative durations are recorded as zero.
+     *
+     * @param nanos the duration in nanoseconds
+     */
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        counts[Long.SIZE - Long.numberOfLeadingZeros(nanos)].increment();
+        total.add(nanos);
+        max.accumulate(nanos);
+    }
+
+    /**
+     * @return the number of recorded durations
+     */
+    public long getCount() {
+        long count = 0;
+        for (LongAdder bucket : counts) {
+            count += bucket.sum();
+        }
+        return count;
+    }
+
+    /**
+     * @return the sum of the recorded durations, in nanoseconds
+     */
+    public long getTotal() {
+        return total.sum();
+    }
+
+    /**
+     * @return the longest recorded duration, in nanoseconds
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * @return the average recorded duration in nanoseconds, or 0 if nothing was recorded
+     */
+    public double getMean() {
+        long count = getCount();
+        return count == 0 ? 0 : (double) getTotal() / count;
+    }
+
+    /**
+     * Returns an upper bound of a percentile of the recorded durations.
+     *
+     * @param percentile the percentile, from 0 to 100
+     * @return the upper bound of the bucket the percentile falls in, in
+     * nanoseconds, or 0 if nothing was recorded
+     */
+    public long getPercentile(double percentile) {
+        long[] snapshot = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts[i].sum();
+            count += snapshot[i];
+        }
+        long rank = (long) Math.ceil(count * Math.min(100, Math.max(0, percentile)) / 100);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank && snapshot[i] > 0) {
+                return Math.min(i == 0 ? 0 : i == Long.SIZE ? Long.MAX_VALUE : (1L << i) - 1, getMax());
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Formats a duration with a unit that keeps the number short.
+     *
+     * @param nanos the duration in nanoseconds
+     * @return the formatted duration
+     */
+    public static String format(double nanos) {
+        if (nanos < 1e3) {
+            return String.format("%.0f ns", nanos);
+        } else if (nanos < 1e6) {
+            return String.format("%.1f us", nanos / 1e3);
+        } else if (nanos < 1e9) {
+            return String.format("%.1f ms", nanos / 1e6);
+        }
+        return String.format("%.2f s", nanos / 1e9);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("n=%d mean=%s p50<=%s p99<=%s max=%s", getCount(), format(getMean()),
+                format(getPercentile(50)), format(getPercentile(99)), format(getMax()));
+    }
+}
@@ -42,17 +42,32 @@ public class LinkFinder {
         final Pattern pattern = Pattern.compile(regex);
         final Matcher matcher = pattern.matcher(html);
         while (matcher.find()) {
-            try {
-                URL url = new URL(base, matcher.group(1));
-                if (isHttp(url)) {
-                    url = normalize(url);
-                    urls.add(url);
-                }
-            } catch (MalformedURLException e) {
-                System.out.println("Invalid URL:" + matcher.group(1));
-            } catch (URISyntaxException e) {
-                throw new RuntimeException(e);
+            addUrl(base, matcher.group(1), urls);
+        }
+    }
+
+    /**
+     * Converts a single HREF value to an absolute, normalized URL using the base
+     * URL and adds it to the provided collection if it uses the HTTP/S protocol.
+     * Values that cannot be parsed are skipped.
+     *
+     * @param base the base URL used to convert relative URLs to absolute
+     * @param href the raw value of the HREF attribute
+     * @param urls the data structure to store found HTTP(S) URLs
+     * @see #normalize(URL)
+     * @see #isHttp(URL)
+     */
+    public static void addUrl(URL base, String href, Collection<URL> urls) {
+        try {
+            URL url = new URL(base, href);
+            if (isHttp(url)) {
+                url = normalize(url);
+                urls.add(url);
             }
+        } catch (MalformedURLException e) {
+            System.out.println("Invalid URL:" + href);
+        } catch (URISyntaxException e) {
+            throw new RuntimeException(e);
         }
     }
 
@@ -0,0 +1,331 @@
+package edu.usfca.cs272;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Detects crawled pages whose text is nearly the same as a page that was
+ * already indexed, such as mirrors, printer-friendly variants and pages that
+ * only differ in their query string.
+ * <p>
+ * Every page is fingerprinted with a 64-bit SimHash of its overlapping 3-word
+ * shingles. Two pages are near-duplicates if their fingerprints differ in at
+ * most {@link #MAX_DISTANCE} bits. Fingerprints are split into four 16-bit
+ * bands and indexed by band, so two fingerprints that differ in at most 3 bits
+ * always share at least one band and only pages sharing a band are compared.
+ * <p>
+ * This class is thread safe.
+ *
+ * @author Thomas de Laveaga
+ * @see WebCrawler
+ */
+public class NearDuplicateDetector {
+    /**
+     * The maximum number of differing bits for two pages to be near-duplicates
+     */
+    public static final int MAX_DISTANCE = 3;
+
+    /**
+     * Number of words in each shingle
+     */
+    private static final int SHINGLE_SIZE = 3;
+
+    /**
+     * Pages with fewer words than this are always indexed, since a few words
+     * are not enough to tell pages apart.
+     */
+    private static final int MIN_WORDS = 10;
+
+    /**
+     * Number of bands each fingerprint is split into
+     */
+    private static final int BANDS = 4;
+
+    /**
+     * FNV-1a 64-bit offset basis
+     */
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+
+    /**
+     * FNV-1a 64-bit prime
+     */
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    /**
+     * Pages indexed so far, by band number and band value. Each key is the band
+     * number in the upper bits and the 16-bit band value in the lower bits.
+     */
+    private final HashMap<Integer, List<Page>> bands;
+
+    /**
+     * Fingerprints of the registered pages, by location
+     */
+    private final HashMap<String, Long> fingerprints;
+
+    /**
+     * Locations of skipped pages mapped to the location of the page they
+     * duplicate
+     */
+    private final TreeMap<String, String> aliases;
+
+    /**
+     * Number of pages checked
+     */
+    private long pages;
+
+    /**
+     * Number of words on the skipped pages
+     */
+    private long skippedWords;
+
+    /**
+     * Number of words on the indexed pages
+     */
+    private long indexedWords;
+
+    /**
+     * Time spent indexing the indexed pages, in nanoseconds
+     */
+    private long indexNanos;
+
+    /**
+     * Time spent fingerprinting and comparing pages, in nanoseconds
+     */
+    private long checkNanos;
+
+    /**
+     * Constructs a new instance of this class
+     */
+    public NearDuplicateDetector() {
+        this.bands = new HashMap<>();
+        this.fingerprints = new HashMap<>();
+        this.aliases = new TreeMap<>();
+    }
+
+    /**
+     * Computes the SimHash of the overlapping shingles of the words. Each
+     * shingle is hashed with FNV-1a, and each bit of the fingerprint is set if
+     * more shingle hashes have that bit set than not.
+     *
+     * @param words the cleaned words of a page
+     * @return the 64-bit fingerprint
+     */
+    public static long fingerprint(String[] words) {
+        int[] weights = new int[Long.SIZE];
+        int shingles = Math.max(1, words.length - SHINGLE_SIZE + 1);
+        for (int i = 0; i < shingles; i++) {
+            long hash = FNV_OFFSET;
+            for (int j = i; j < Math.min(words.length, i + SHINGLE_SIZE); j++) {
+                String word = words[j];
+                for (int k = 0; k < word.length(); k++) {
+                    hash ^= word.charAt(k);
+                    hash *= FNV_PRIME;
+                }
+                hash ^= ' ';
+                hash *= FNV_PRIME;
+            }
+            for (int bit = 0; bit < Long.SIZE; bit++) {
+                weights[bit] += ((hash >>> bit) & 1) == 1 ? 1 : -1;
+            }
+        }
+        long fingerprint = 0;
+        for (int bit = 0; bit < Long.SIZE; bit++) {
+            if (weights[bit] > 0) {
+                fingerprint |= 1L << bit;
+            }
+        }
+        return fingerprint;
+    }
+
+    /**
+     * Checks whether a page is a near-duplicate of a page that was already
+     * registered. If it is, the page is recorded as an alias of that page;
+     * otherwise it is registered so later pages are compared against it.
+     *
+     * @param location the location of the page
+     * @param words    the cleaned words of the page
+     * @return the location of the page this one duplicates, or null if the page
+     * should be indexed
+     */
+    public String findDuplicate(String location, String[] words) {
+        long start = System.nanoTime();
+        if (words.length < MIN_WORDS) {
+            synchronized (this) {
+                pages++;
+                checkNanos += System.nanoTime() - start;
+            }
+            return null;
+        }
+        long fingerprint = fingerprint(words);
+
+        synchronized (this) {
+            pages++;
+            try {
+                for (int band = 0; band < BANDS; band++) {
+                    List<Page> candidates = bands.get(bandKey(fingerprint, band));
+                    if (candidates == null) {
+                        continue;
+                    }
+                    for (Page candidate : candidates) {
+                        if (Long.bitCount(candidate.fingerprint ^ fingerprint) <= MAX_DISTANCE) {
+                            aliases.put(location, candidate.location);
+                            skippedWords += words.length;
+                            return candidate.location;
+                        }
+                    }
+                }
+                add(new Page(location, fingerprint));
+                return null;
+            } finally {
+                checkNanos += System.nanoTime() - start;
+            }
+        }
+    }
+
+    /**
+     * Registers a page that is already indexed without checking it, so later
+     * pages are compared against it. Used for pages reused from a cache.
+     *
+     * @param location the location of the page
+     * @param words    the cleaned words of the page
+     */
+    public void register(String location, String[] words) {
+        if (words.length < MIN_WORDS) {
+            return;
+        }
+        long fingerprint = fingerprint(words);
+        synchronized (this) {
+            add(new Page(location, fingerprint));
+        }
+    }
+
+    /**
+     * Registers a page by a fingerprint computed earlier, such as one saved by
+     * a {@link CrawlCheckpoint}, without checking it.
+     *
+     * @param location    the location of the page
+     * @param fingerprint the fingerprint of the page
+     */
+    public synchronized void register(String location, long fingerprint) {
+        add(new Page(location, fingerprint));
+    }
+
+    /**
+     * Returns the fingerprint of a registered page, so it can be saved with the
+     * page and registered again when a crawl is resumed.
+     *
+     * @param location the location of the page
+     * @return the fingerprint, or null if the page was not registered, such as
+     * a page with too few words or a near-duplicate
+     */
+    public synchronized Long getFingerprint(String location) {
+        return fingerprints.get(location);
+    }
+
+    /**
+     * Adds a page to every band it falls in. Must hold the lock of this object.
+     *
+     * @param page the page to add
+     */
+    private void add(Page page) {
+        if (fingerprints.putIfAbsent(page.location, page.fingerprint) != null) {
+            return; // already in its bands
+        }
+        for (int band = 0; band < BANDS; band++) {
+            bands.computeIfAbsent(bandKey(page.fingerprint, band), key -> new ArrayList<>()).add(page);
+        }
+    }
+
+    /**
+     * Records the work done indexing a page that was not a duplicate, used to
+     * estimate the time saved by skipping duplicates.
+     *
+     * @param words the number of words indexed
+     * @param nanos the time spent indexing them, in nanoseconds
+     */
+    public synchronized void recordIndexed(int words, long nanos) {
+        indexedWords += words;
+        indexNanos += nanos;
+    }
+
+    /**
+     * Returns the key of one band of a fingerprint.
+     *
+     * @param fingerprint the fingerprint
+     * @param band        the band number
+     * @return the band number combined with the band value
+     */
+    private static int bandKey(long fingerprint, int band) {
+        return (band << 16) | (int) ((fingerprint >>> (band * 16)) & 0xFFFF);
+    }
+
+    /**
+     * @return an unmodifiable copy of the skipped locations mapped to the
+     * location they duplicate
+     */
+    public synchronized Map<String, String> getAliases() {
+        return Collections.unmodifiableMap(new TreeMap<>(aliases));
+    }
+
+    /**
+     * @return the number of pages skipped as near-duplicates
+     */
+    public synchronized int getSkippedPages() {
+        return aliases.size();
+    }
+
+    /**
+     * @return the number of words that were not indexed because their page was
+     * skipped
+     */
+    public synchronized long getSkippedWords() {
+        return skippedWords;
+    }
+
+    /**
+     * Estimates the indexing time saved by skipping pages, using the average
+     * time per word of the pages that were indexed.
+     *
+     * @return the estimated time saved, in nanoseconds
+     */
+    public synchronized long getSavedNanos() {
+        return indexedWords == 0 ? 0 : Math.round((double) indexNanos / indexedWords * skippedWords);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%d of %d pages skipped as near-duplicates, %d words not indexed, "
+                        + "~%.1f ms of indexing saved for %.1f ms of checking",
+                getSkippedPages(), pages, skippedWords, getSavedNanos() / 1e6, checkNanos / 1e6);
+    }
+
+    /**
+     * A registered page and its fingerprint
+     */
+    private static class Page {
+        /**
+         * The location of the page
+         */
+        private final String location;
+
+        /**
+         * The fingerprint of the page
+         */
+        private final long fingerprint;
+
+        /**
+         * Constructs a new instance of this class
+         *
+         * @param location    the location of the page
+         * @param fingerprint the fingerprint of the page
+         */
+        private Page(String location, long fingerprint) {
+            this.location = location;
+            this.fingerprint = fingerprint;
+        }
+    }
+}
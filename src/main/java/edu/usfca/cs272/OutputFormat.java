@@ -0,0 +1,47 @@
+package edu.usfca.cs272;
+
+/**
+ * The JSON layouts the index, the word counts and the search results can be
+ * written in. Any of them can also be gzip-compressed.
+ *
+ * @author Thomas de Laveaga
+ * @see PrettyJsonWriter
+ * @see CompactJsonWriter
+ */
+public enum OutputFormat {
+    /**
+     * One JSON object with every element on its own indented line. This is
+     * the default.
+     */
+    PRETTY,
+
+    /**
+     * The same JSON object as {@link #PRETTY} without any whitespace
+     */
+    MINIFIED,
+
+    /**
+     * Newline-delimited JSON: one minified object per line, holding a single
+     * word, location or query and its value, so consumers can read the file a
+     * line at a time
+     */
+    NDJSON;
+
+    /**
+     * Returns the format with the given name, ignoring case.
+     *
+     * @param name         the name of the format, such as "minified"
+     * @param defaultValue the format to return if the name is null or unknown
+     * @return the format with the given name, or the default
+     */
+    public static OutputFormat of(String name, OutputFormat defaultValue) {
+        if (name != null) {
+            for (OutputFormat format : values()) {
+                if (format.name().equalsIgnoreCase(name)) {
+                    return format;
+                }
+            }
+        }
+        return defaultValue;
+    }
+}
@@ -1,18 +1,35 @@
 package edu.usfca.cs272;
 
-import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.StringWriter;
+import java.io.UncheckedIOException;
 import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.text.DecimalFormatSymbols;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.NavigableMap;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.zip.GZIPOutputStream;
 
 import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
 
 
 /**
@@ -30,6 +47,39 @@ public class PrettyJsonWriter {
      */
     final static String newline = System.getProperty("line.separator");
 
+    /**
+     * Roughly how many word locations of an inverted index are written per
+     * chunk when the index is written in parallel
+     */
+    private static final int CHUNK_LOCATIONS = 1 << 11;
+
+    /**
+     * The fewest chunks that may be written in parallel before the oldest is
+     * written to file
+     */
+    private static final int CHUNK_WINDOW = 32;
+
+    /**
+     * Number of chars buffered while a chunk is encoded
+     */
+    private static final int CHUNK_BUFFER_SIZE = 1 << 12;
+
+    /**
+     * Number of bytes buffered by a gzip-compressed file
+     */
+    private static final int GZIP_BUFFER_SIZE = 1 << 16;
+
+    /**
+     * Indentation for the first few levels, so indenting is a single write
+     */
+    private static final String[] INDENTS = new String[32];
+
+    static {
+        for (int i = 0; i < INDENTS.length; i++) {
+            INDENTS[i] = "  ".repeat(i);
+        }
+    }
+
     /**
      * Indents the writer by the specified number of times. Does nothing if the
      * indentation level is 0 or less.
@@ -39,8 +89,87 @@ public class PrettyJsonWriter {
      * @throws IOException if an IO error occurs
      */
     public static void writeIndent(Writer writer, int indent) throws IOException {
-        while (indent-- > 0) {
-            writer.write("  ");
+        if (indent > 0) {
+            writer.write(indent < INDENTS.length ? INDENTS[indent] : "  ".repeat(indent));
+        }
+    }
+
+    /**
+     * Writes a number. Integers are formatted straight into the buffer of a
+     * {@link FastWriter} instead of going through a String.
+     *
+     * @param element the number to write
+     * @param writer  the writer to use
+     * @throws IOException if an IO error occurs
+     */
+    static void writeNumber(Number element, Writer writer) throws IOException {
+        if (element instanceof Integer || element instanceof Long) {
+            writeNumber(element.longValue(), writer);
+        } else {
+            writer.write(element.toString());
+        }
+    }
+
+    /**
+     * Writes an integer, straight into the buffer if the writer is a {@link FastWriter}.
+     *
+     * @param value  the integer to write
+     * @param writer the writer to use
+     * @throws IOException if an IO error occurs
+     */
+    static void writeNumber(long value, Writer writer) throws IOException {
+        if (writer instanceof FastWriter fast) {
+            fast.writeNumber(value);
+        } else {
+            writer.write(String.valueOf(value));
+        }
+    }
+
+    /**
+     * Writes a score with 8 decimal places, exactly as {@code String.format("%.8f", score)}
+     * would. A {@link FastWriter} formats most scores itself and only falls back
+     * to {@link String#format(String, Object...)} for the rest.
+     *
+     * @param score  the score to write
+     * @param writer the writer to use
+     * @throws IOException if an IO error occurs
+     */
+    static void writeScore(double score, Writer writer) throws IOException {
+        if (!(writer instanceof FastWriter fast) || !fast.writeScore(score)) {
+            writer.write(String.format("%.8f", score));
+        }
+    }
+
+    /**
+     * Opens a file for writing JSON through a large {@link FastWriter} buffer.
+     *
+     * @param path the file path to use
+     * @return the writer, which must be closed
+     * @throws IOException if an IO error occurs
+     */
+    static FastWriter newWriter(Path path) throws IOException {
+        return new FastWriter(Files.newBufferedWriter(path, UTF_8));
+    }
+
+    /**
+     * Opens a file for writing JSON through a large {@link FastWriter} buffer,
+     * optionally gzip-compressing what is written.
+     *
+     * @param path the file path to use
+     * @param gzip whether to gzip-compress the file
+     * @return the writer, which must be closed
+     * @throws IOException if an IO error occurs
+     */
+    static FastWriter newWriter(Path path, boolean gzip) throws IOException {
+        if (!gzip) {
+            return newWriter(path);
+        }
+        OutputStream out = Files.newOutputStream(path);
+        try {
+            return new FastWriter(new OutputStreamWriter(new GZIPOutputStream(out, GZIP_BUFFER_SIZE), UTF_8));
+        } catch (IOException e) {
+            out.close();
+            throw e;
         }
     }
 
@@ -94,14 +223,14 @@ public class PrettyJsonWriter {
             Number element = iterator.next();
             writer.write(newline);
             writeIndent(writer, indent + 1);
-            writer.write(element.toString());
+            writeNumber(element, writer);
         }
         while (iterator.hasNext()) {
             writer.write(",");
             Number element = iterator.next();
             writer.write(newline);
             writeIndent(writer, indent + 1);
-            writer.write(element.toString());
+            writeNumber(element, writer);
         }
         writer.write(newline);
         writeIndent(writer, indent);
@@ -120,7 +249,7 @@ public class PrettyJsonWriter {
      */
     public static void writeArray(Collection<? extends Number> elements,
                                   Path path) throws IOException {
-        try (BufferedWriter writer = Files.newBufferedWriter(path, UTF_8)) {
+        try (Writer writer = newWriter(path)) {
             writeArray(elements, writer, 0);
         }
     }
@@ -166,7 +295,7 @@ public class PrettyJsonWriter {
             writeIndent(writer, indent + 1);
             writeQuote(element.getKey(), writer, 0);
             writer.write(": ");
-            writer.write(element.getValue().toString());
+            writeNumber(element.getValue(), writer);
         }
         while (iterator.hasNext()) {
             writer.write(",");
@@ -175,7 +304,7 @@ public class PrettyJsonWriter {
             writeIndent(writer, indent + 1);
             writeQuote(element.getKey(), writer, 0);
             writer.write(": ");
-            writer.write(element.getValue().toString());
+            writeNumber(element.getValue(), writer);
         }
         writer.write(newline);
         writeIndent(writer, indent);
@@ -194,7 +323,7 @@ public class PrettyJsonWriter {
      */
     public static void writeObject(Map<String, ? extends Number> elements,
                                    Path path) throws IOException {
-        try (BufferedWriter writer = Files.newBufferedWriter(path, UTF_8)) {
+        try (Writer writer = newWriter(path)) {
             writeObject(elements, writer, 0);
         }
     }
@@ -273,7 +402,7 @@ public class PrettyJsonWriter {
     public static void writeNestedArrays(
             Map<String, ? extends Collection<? extends Number>> elements, Path path)
             throws IOException {
-        try (BufferedWriter writer = Files.newBufferedWriter(path, UTF_8)) {
+        try (Writer writer = newWriter(path)) {
             writeNestedArrays(elements, writer, 0);
         }
     }
@@ -349,7 +478,7 @@ public class PrettyJsonWriter {
     public static void writeNestedObjects(
             Collection<? extends Map<String, ? extends Number>> elements, Path path)
             throws IOException {
-        try (BufferedWriter writer = Files.newBufferedWriter(path, UTF_8)) {
+        try (Writer writer = newWriter(path)) {
             writeNestedObjects(elements, writer, 0);
         }
     }
@@ -385,30 +514,47 @@ public class PrettyJsonWriter {
     public static void invertedWordIndexToJSON(
             Map<String, ? extends Map<String, ? extends Set<Integer>>> wordMap, Writer writer, int indent
     ) throws IOException {
+        if (!(writer instanceof FastWriter)) {
+            FastWriter fast = new FastWriter(writer);
+            invertedWordIndexToJSON(wordMap, fast, indent);
+            fast.drain();
+            return;
+        }
         writer.write("{");
         var iterator = wordMap.entrySet().iterator();
         if (iterator.hasNext()) {
             var wordEntry = iterator.next();
-            writer.write(newline);
-            writeIndent(writer, indent + 1);
-            writeQuote(wordEntry.getKey(), writer, 0);
-            writer.write(": ");
-            writeNestedArrays(wordEntry.getValue(), writer, indent + 1); //locationsObj.toJSON
+            writeIndexEntry(wordEntry.getKey(), wordEntry.getValue(), writer, indent);
         }
         while (iterator.hasNext()) {
             var wordEntry = iterator.next();
             writer.write(",");
-            writer.write(newline);
-            writeIndent(writer, indent + 1);
-            writeQuote(wordEntry.getKey(), writer, 0);
-            writer.write(": ");
-            writeNestedArrays(wordEntry.getValue(), writer, indent + 1); //locationsObj.toJSON
+            writeIndexEntry(wordEntry.getKey(), wordEntry.getValue(), writer, indent);
         }
         writer.write(newline);
         writeIndent(writer, indent);
         writer.write("}");
     }
 
+    /**
+     * Writes one word and its locations as a member of the index object,
+     * without the comma that separates it from the previous member.
+     *
+     * @param word      the word
+     * @param locations the locations of the word mapped to its positions there
+     * @param writer    the writer to use
+     * @param indent    the indentation of the index object
+     * @throws IOException if the writer throws an IOException
+     */
+    public static void writeIndexEntry(String word, Map<String, ? extends Set<Integer>> locations,
+                                       Writer writer, int indent) throws IOException {
+        writer.write(newline);
+        writeIndent(writer, indent + 1);
+        writeQuote(word, writer, 0);
+        writer.write(": ");
+        writeNestedArrays(locations, writer, indent + 1); //locationsObj.toJSON
+    }
+
     /**
      * Converts a InvertedWordIndex to Pretty JSON and returns as a String
      *
@@ -435,8 +581,159 @@ public class PrettyJsonWriter {
      */
     public static void invertedWordIndexToJSON(
             Map<String, ? extends Map<String, ? extends Set<Integer>>> wordMap, Path path) throws IOException {
-        try (BufferedWriter buffwriter = Files.newBufferedWriter(path, UTF_8)) {
-            invertedWordIndexToJSON(wordMap, buffwriter, 0);
+        try (Writer writer = newWriter(path)) {
+            invertedWordIndexToJSON(wordMap, writer, 0);
+        }
+    }
+
+    /**
+     * Writes an InvertedWordIndex to file as pretty JSON, using the work queue
+     * to turn ranges of words into JSON in parallel. The ranges are written to
+     * file in order, so the file is the same as the one written by
+     * {@link #invertedWordIndexToJSON(Map, Path)}. Only a window of ranges is
+     * kept in memory at a time.
+     * <p>
+     * The index is read by the workers of the work queue, so it must not change
+     * until this method returns.
+     *
+     * @param wordMap   the data to use
+     * @param path      the file path to write to
+     * @param workQueue the work queue to write the ranges with
+     * @throws IOException if unable to write to the file
+     */
+    public static void invertedWordIndexToJSON(
+            NavigableMap<String, ? extends Map<String, ? extends Set<Integer>>> wordMap, Path path,
+            WorkQueue workQueue) throws IOException {
+        // split the words into ranges of roughly CHUNK_LOCATIONS locations
+        List<String> starts = new ArrayList<>();
+        int locations = CHUNK_LOCATIONS;
+        for (var wordEntry : wordMap.entrySet()) {
+            if (locations >= CHUNK_LOCATIONS) {
+                starts.add(wordEntry.getKey());
+                locations = 0;
+            }
+            locations += wordEntry.getValue().size();
+        }
+
+        int window = Math.max(CHUNK_WINDOW, 2 * workQueue.size());
+        ArrayDeque<CompletableFuture<ByteBuffer>> chunks = new ArrayDeque<>();
+        TaskGroup writing = new TaskGroup(workQueue);
+        try (FileChannel channel = FileChannel.open(path, CREATE, TRUNCATE_EXISTING, WRITE)) {
+            writeFully(channel, List.of(UTF_8.encode("{")));
+            int next = 0;
+            while (next < starts.size() || !chunks.isEmpty()) {
+                while (next < starts.size() && chunks.size() < window) {
+                    var range = next + 1 < starts.size()
+                            ? wordMap.subMap(starts.get(next), true, starts.get(next + 1), false)
+                            : wordMap.tailMap(starts.get(next), true);
+                    boolean first = next == 0;
+                    CompletableFuture<ByteBuffer> chunk = new CompletableFuture<>();
+                    writing.execute(() -> {
+                        try {
+                            chunk.complete(encodeIndexEntries(range, first));
+                        } catch (RuntimeException e) {
+                            chunk.completeExceptionally(e);
+                        }
+                    });
+                    chunks.add(chunk);
+                    next++;
+                }
+
+                // gather the next chunk and any after it that are already done into one write
+                List<ByteBuffer> ready = new ArrayList<>();
+                do {
+                    ready.add(join(chunks.remove()));
+                } while (!chunks.isEmpty() && chunks.peek().isDone());
+                writeFully(channel, ready);
+            }
+            writeFully(channel, List.of(UTF_8.encode(newline + "}")));
+        } finally {
+            writing.finish(); // no worker may still be reading the index once this returns
+        }
+    }
+
+    /**
+     * Writes a range of index words to UTF-8 JSON, as they appear inside the
+     * index object.
+     *
+     * @param words the range of words mapped to their locations
+     * @param first whether the range starts the index object, in which case
+     *              it does not start with a comma
+     * @return the encoded JSON
+     */
+    private static ByteBuffer encodeIndexEntries(
+            Map<String, ? extends Map<String, ? extends Set<Integer>>> words, boolean first) {
+        ChunkOutputStream bytes = new ChunkOutputStream(CHUNK_LOCATIONS * 128);
+        // the stream already buffers the whole chunk, so the writer only needs a small buffer
+        try (FastWriter writer = new FastWriter(new OutputStreamWriter(bytes, UTF_8), CHUNK_BUFFER_SIZE)) {
+            for (var wordEntry : words.entrySet()) {
+                if (!first) {
+                    writer.write(",");
+                }
+                writeIndexEntry(wordEntry.getKey(), wordEntry.getValue(), writer, 0);
+                first = false;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteBuffer();
+    }
+
+    /**
+     * Collects an encoded chunk of the index and hands over its bytes without
+     * copying them.
+     */
+    private static class ChunkOutputStream extends ByteArrayOutputStream {
+        /**
+         * Constructs a new instance of this class
+         *
+         * @param size the initial capacity in bytes
+         */
+        private ChunkOutputStream(int size) {
+            super(size);
+        }
+
+        /**
+         * @return the bytes written so far, backed by the buffer of this stream
+         */
+        private ByteBuffer toByteBuffer() {
+            return ByteBuffer.wrap(buf, 0, count);
+        }
+    }
+
+    /**
+     * Waits for an encoded chunk, rethrowing an IOException that encoding it threw.
+     *
+     * @param chunk the chunk to wait for
+     * @return the encoded chunk
+     * @throws IOException if encoding the chunk threw one
+     */
+    private static ByteBuffer join(CompletableFuture<ByteBuffer> chunk) throws IOException {
+        try {
+            return chunk.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof UncheckedIOException unchecked) {
+                throw unchecked.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Writes every buffer to the channel with gathering writes.
+     *
+     * @param channel the channel to write to
+     * @param buffers the buffers to write, in order
+     * @throws IOException if unable to write to the channel
+     */
+    private static void writeFully(FileChannel channel, List<ByteBuffer> buffers) throws IOException {
+        ByteBuffer[] array = buffers.toArray(new ByteBuffer[0]);
+        long remaining = 0;
+        for (ByteBuffer buffer : array) {
+            remaining += buffer.remaining();
+        }
+        while (remaining > 0) {
+            remaining -= channel.write(array);
         }
     }
 
@@ -449,8 +746,8 @@ public class PrettyJsonWriter {
      */
     public static void resultsToJSON(
             Map<String, ? extends Collection<InvertedWordIndex.SearchResult>> elements, Path path) throws IOException {
-        try (BufferedWriter buffwriter = Files.newBufferedWriter(path, UTF_8)) {
-            resultsToJSON(elements, buffwriter, 0);
+        try (Writer writer = newWriter(path)) {
+            resultsToJSON(elements, writer, 0);
         }
     }
 
@@ -465,30 +762,48 @@ public class PrettyJsonWriter {
      */
     public static void resultsToJSON(Map<String, ? extends Collection<InvertedWordIndex.SearchResult>> elements,
                                      Writer writer, int indent) throws IOException {
+        if (!(writer instanceof FastWriter)) {
+            FastWriter fast = new FastWriter(writer);
+            resultsToJSON(elements, fast, indent);
+            fast.drain();
+            return;
+        }
         writer.write("{");
         var iterator = elements.entrySet().iterator();
         if (iterator.hasNext()) {
             var entry = iterator.next();
-            writer.write(newline);
-            writeIndent(writer, indent + 1);
-            writeQuote(entry.getKey(), writer, 0);
-            writer.write(": ");
-            writeNestedSearchResults(entry.getValue(), writer, indent + 1);
+            writeResultsEntry(entry.getKey(), entry.getValue(), writer, indent);
         }
         while (iterator.hasNext()) {
             var wordEntry = iterator.next();
             writer.write(",");
-            writer.write(newline);
-            writeIndent(writer, indent + 1);
-            writeQuote(wordEntry.getKey(), writer, 0);
-            writer.write(": ");
-            writeNestedSearchResults(wordEntry.getValue(), writer, indent + 1);
+            writeResultsEntry(wordEntry.getKey(), wordEntry.getValue(), writer, indent);
         }
         writer.write(newline);
         writeIndent(writer, indent);
         writer.write("}");
     }
 
+    /**
+     * Writes one query and its SearchResults as a member of the results object,
+     * without the comma that separates it from the previous member. Lets the
+     * results be written one query at a time, as in {@link #resultsToJSON(Map, Writer, int)}.
+     *
+     * @param query   the query
+     * @param results the SearchResults of the query
+     * @param writer  the writer to use
+     * @param indent  the indentation of the results object
+     * @throws IOException if the writer throws an IOException
+     */
+    public static void writeResultsEntry(String query, Collection<InvertedWordIndex.SearchResult> results,
+                                         Writer writer, int indent) throws IOException {
+        writer.write(newline);
+        writeIndent(writer, indent + 1);
+        writeQuote(query, writer, 0);
+        writer.write(": ");
+        writeNestedSearchResults(results, writer, indent + 1);
+    }
+
     /**
      * Writes a Collection of SearchResult
      *
@@ -536,13 +851,13 @@ public class PrettyJsonWriter {
         writeIndent(writer, indent + 1);
         writeQuote("count", writer, 0);
         writer.write(": ");
-        writer.write(String.valueOf(result.getCount()));
+        writeNumber(result.getCount(), writer);
         writer.write(",");
         writer.write(newline);
         writeIndent(writer, indent + 1);
         writeQuote("score", writer, 0);
         writer.write(": ");
-        writer.write(String.format("%.8f", result.getScore()));
+        writeScore(result.getScore(), writer);
         writer.write(",");
         writer.write(newline);
         writeIndent(writer, indent + 1);
@@ -554,6 +869,221 @@ public class PrettyJsonWriter {
         writer.write("}");
     }
 
-}
+    /**
+     * An unsynchronized writer that collects output in a large buffer and hands
+     * it to the underlying writer in big chunks. It can also format integers and
+     * scores directly into the buffer, which is where most of the time went when
+     * writing a large index or large results through {@link String#valueOf(long)}
+     * and {@link String#format(String, Object...)}.
+     * <p>
+     * Closing or flushing this writer also closes or flushes the underlying
+     * writer; {@link #drain()} only hands over the buffered output. This class
+     * is not thread safe.
+     */
+    static final class FastWriter extends Writer {
+        /**
+         * Number of chars buffered before they are handed to the underlying writer
+         */
+        private static final int BUFFER_SIZE = 1 << 16;
+
+        /**
+         * Scores at least this large are left to {@link String#format(String, Object...)},
+         * since rounding them from a scaled double is no longer exact enough
+         */
+        private static final double SCORE_LIMIT = 10;
+
+        /**
+         * Number of decimal places of a score
+         */
+        private static final int SCORE_PLACES = 8;
+
+        /**
+         * 10 to the power of {@link #SCORE_PLACES}
+         */
+        private static final long SCORE_SCALE = 100_000_000L;
+
+        /**
+         * How close to halfway between two results a scaled score may be before
+         * it is left to {@link String#format(String, Object...)} to round
+         */
+        private static final double TIE_MARGIN = 1e-5;
+
+        /**
+         * The writer the buffered output is handed to
+         */
+        private final Writer out;
+
+        /**
+         * The buffered output
+         */
+        private final char[] buffer;
+
+        /**
+         * Number of chars in the buffer
+         */
+        private int position;
+
+        /**
+         * Whether the default locale formats decimals with '.' and ASCII digits,
+         * as the fast score formatting does
+         */
+        private final boolean plainDecimals;
+
+        /**
+         * Constructs a new instance of this class with the default buffer size
+         *
+         * @param out the writer to hand the buffered output to
+         */
+        FastWriter(Writer out) {
+            this(out, BUFFER_SIZE);
+        }
+
+        /**
+         * Constructs a new instance of this class
+         *
+         * @param out  the writer to hand the buffered output to
+         * @param size the number of chars to buffer, at least 32
+         */
+        FastWriter(Writer out, int size) {
+            this.out = out;
+            this.buffer = new char[Math.max(32, size)];
+            DecimalFormatSymbols symbols = DecimalFormatSymbols.getInstance(Locale.getDefault(Locale.Category.FORMAT));
+            this.plainDecimals = symbols.getDecimalSeparator() == '.' && symbols.getZeroDigit() == '0';
+        }
+
+        @Override
+        public void write(int c) throws IOException {
+            if (position == buffer.length) {
+                drain();
+            }
+            buffer[position++] = (char) c;
+        }
 
+        @Override
+        public void write(String str) throws IOException {
+            write(str, 0, str.length());
+        }
+
+        @Override
+        public void write(String str, int off, int len) throws IOException {
+            if (len > buffer.length - position) {
+                drain();
+                if (len > buffer.length) {
+                    out.write(str, off, len);
+                    return;
+                }
+            }
+            str.getChars(off, off + len, buffer, position);
+            position += len;
+        }
 
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            if (len > buffer.length - position) {
+                drain();
+                if (len > buffer.length) {
+                    out.write(cbuf, off, len);
+                    return;
+                }
+            }
+            System.arraycopy(cbuf, off, buffer, position, len);
+            position += len;
+        }
+
+        /**
+         * Writes the decimal digits of an integer directly into the buffer.
+         *
+         * @param value the integer to write
+         * @throws IOException if an IO error occurs
+         */
+        void writeNumber(long value) throws IOException {
+            if (value < 0) {
+                if (value == Long.MIN_VALUE) {
+                    write(String.valueOf(value));
+                    return;
+                }
+                write('-');
+                value = -value;
+            }
+            int digits = 1;
+            for (long rest = value / 10; rest > 0; rest /= 10) {
+                digits++;
+            }
+            writeDigits(value, digits);
+        }
+
+        /**
+         * Writes a score with 8 decimal places if it can be rounded exactly as
+         * {@code String.format("%.8f", score)} would round it. That is the case
+         * for non-negative scores below {@link #SCORE_LIMIT} that are not too
+         * close to halfway between two results, which covers almost every score.
+         *
+         * @param score the score to write
+         * @return true if the score was written, false if it must be formatted
+         * some other way
+         * @throws IOException if an IO error occurs
+         */
+        boolean writeScore(double score) throws IOException {
+            // the sign bit rules out negative scores and -0.0
+            if (!plainDecimals || Double.doubleToRawLongBits(score) < 0 || !(score < SCORE_LIMIT)) {
+                return false;
+            }
+            double scaled = score * SCORE_SCALE;
+            double whole = Math.floor(scaled);
+            double fraction = scaled - whole;
+            if (Math.abs(fraction - 0.5) < TIE_MARGIN) {
+                return false;
+            }
+            long units = (long) whole + (fraction > 0.5 ? 1 : 0);
+            writeNumber(units / SCORE_SCALE);
+            write('.');
+            writeDigits(units % SCORE_SCALE, SCORE_PLACES);
+            return true;
+        }
+
+        /**
+         * Writes the last digits of a non-negative integer, padded with zeros.
+         *
+         * @param value  the integer to write
+         * @param digits the number of digits to write
+         * @throws IOException if an IO error occurs
+         */
+        private void writeDigits(long value, int digits) throws IOException {
+            if (digits > buffer.length - position) {
+                drain();
+            }
+            for (int i = position + digits - 1; i >= position; i--) {
+                buffer[i] = (char) ('0' + value % 10);
+                value /= 10;
+            }
+            position += digits;
+        }
+
+        /**
+         * Hands the buffered output to the underlying writer without flushing it.
+         *
+         * @throws IOException if an IO error occurs
+         */
+        void drain() throws IOException {
+            if (position > 0) {
+                out.write(buffer, 0, position);
+                position = 0;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            drain();
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                drain();
+            } finally {
+                out.close();
+            }
+        }
+    }
+}
@@ -3,6 +3,7 @@ package edu.usfca.cs272;
 import edu.usfca.cs272.InvertedWordIndex.SearchResult;
 
 import java.io.IOException;
+import java.io.Writer;
 import java.nio.file.Path;
 import java.util.*;
 
@@ -85,4 +86,13 @@ public class QueryFileHandler implements QueryFileHandlerInterface {
     public void resultsToJSON(Path output) throws IOException {
         PrettyJsonWriter.resultsToJSON(this.results, output);
     }
+
+    @Override
+    public void resultsToJSON(Writer writer, OutputFormat format) throws IOException {
+        switch (format) {
+            case PRETTY -> PrettyJsonWriter.resultsToJSON(this.results, writer, 0);
+            case MINIFIED -> CompactJsonWriter.resultsToJSON(this.results, writer, false);
+            case NDJSON -> CompactJsonWriter.resultsToJSON(this.results, writer, true);
+        }
+    }
 }
@@ -2,6 +2,7 @@ package edu.usfca.cs272;
 
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.Writer;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.List;
@@ -59,4 +60,13 @@ public interface QueryFileHandlerInterface {
      * @throws IOException if the writer throws an Exception
      */
     void resultsToJSON(Path output) throws IOException;
+
+    /**
+     * Writes the current SearchResults as JSON in the given format
+     *
+     * @param writer the writer to use
+     * @param format the layout of the JSON
+     * @throws IOException if the writer throws an Exception
+     */
+    void resultsToJSON(Writer writer, OutputFormat format) throws IOException;
 }
@@ -4,16 +4,36 @@ import org.apache.logging.log4j.Level;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import java.lang.invoke.VarHandle;
 import java.util.ConcurrentModificationException;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.StampedLock;
 
 /**
  * Maintains a pair of associated locks, one for read-only operations and one
  * for writing. The read lock may be held simultaneously by multiple reader
  * threads, so long as there are no writers. The write lock is exclusive. The
  * active writer is able to acquire read or write locks as long as it is active.
+ * <p>
+ * Which waiting threads go first is decided by the {@link Policy}. By default
+ * readers are preferred, which lets a steady stream of readers keep a writer
+ * waiting indefinitely; the other policies bound how long a writer waits. A
+ * thread that already holds the read lock can always take it again, so
+ * nested reads cannot deadlock behind a waiting writer.
+ * <p>
+ * Also supports optimistic reads in the style of {@link StampedLock}: a reader
+ * gets a stamp from {@link #tryOptimisticRead()}, reads without locking, and
+ * then checks with {@link #validate(long)} that no writer held the lock in the
+ * meantime. If validation fails, the reader must throw away what it read and
+ * read again under the read lock. Optimistic readers never write to shared
+ * state, so they do not contend with each other. An optimistic read should
+ * only copy a few fields into locals: walking a tree or list that a writer is
+ * changing can loop or fail before {@link #validate(long)} is ever reached.
+ * <p>
+ * The lock keeps {@link Stats} on how long threads wait for and hold it, so
+ * contention can be measured without logging on every lock and unlock.
  * <!-- simplified lock used for this class -->
  *
  * @author CS 272 Software Development (University of San Francisco)
@@ -24,8 +44,33 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
  * @see ReentrantLock
  * @see ReadWriteLock
  * @see ReentrantReadWriteLock
+ * @see StampedLock
  */
 public class ReadWriteLock {
+    /**
+     * Decides whether new readers may go ahead of waiting writers.
+     */
+    public enum Policy {
+        /**
+         * Readers are admitted whenever no writer holds the lock, even if
+         * writers are waiting. Best read throughput, but writers can starve.
+         */
+        READER_PREFERRING,
+
+        /**
+         * New readers wait while any writer is waiting. Writers never starve,
+         * but a steady stream of writers can starve readers.
+         */
+        WRITER_PREFERRING,
+
+        /**
+         * Reading and writing alternate: new readers wait behind a waiting
+         * writer, and every reader that was waiting when a writer releases the
+         * lock goes before the next writer. Neither side starves.
+         */
+        PHASE_FAIR
+    }
+
     /**
      * The conditional lock used for reading.
      */
@@ -51,6 +96,79 @@ public class ReadWriteLock {
      */
     private Thread activeWriter;
 
+    /**
+     * Incremented when the write lock is first acquired and again when it is
+     * fully released, so it is odd exactly while a writer holds the lock. Only
+     * changed while holding the lock object.
+     */
+    private volatile long version;
+
+    /**
+     * Decides whether new readers may go ahead of waiting writers
+     */
+    private final Policy policy;
+
+    /**
+     * Number of threads waiting for the read or write lock
+     */
+    private int waiting;
+
+    /**
+     * Number of threads waiting for the read lock
+     */
+    private int waitingReaders;
+
+    /**
+     * Number of threads waiting for the write lock
+     */
+    private int waitingWriters;
+
+    /**
+     * Number of waiting readers that must get the read lock before the next
+     * writer, when phase-fair. Set when a writer releases the lock.
+     */
+    private int readerPass;
+
+    /**
+     * The largest number of threads that were waiting at once
+     */
+    private int maxWaiting;
+
+    /**
+     * Number of lock acquisitions that had to wait
+     */
+    private long contended;
+
+    /**
+     * When the current writer first acquired the write lock, from {@link System#nanoTime()}
+     */
+    private long writeAcquired;
+
+    /**
+     * How many read locks the current thread holds and when it took the first
+     */
+    private final ThreadLocal<long[]> readHolds;
+
+    /**
+     * Time spent waiting for the read lock
+     */
+    private final LatencyHistogram readWait;
+
+    /**
+     * Time spent waiting for the write lock
+     */
+    private final LatencyHistogram writeWait;
+
+    /**
+     * Time the read lock was held by each thread
+     */
+    private final LatencyHistogram readHold;
+
+    /**
+     * Time the write lock was held
+     */
+    private final LatencyHistogram writeHold;
+
     /**
      * The log4j2 logger.
      */
@@ -67,9 +185,20 @@ public class ReadWriteLock {
     private final Object lock;
 
     /**
-     * Initializes a new simple read/write lock.
+     * Initializes a new simple read/write lock that prefers readers.
      */
     public ReadWriteLock() {
+        this(Policy.READER_PREFERRING);
+    }
+
+    /**
+     * Initializes a new simple read/write lock.
+     *
+     * @param policy decides whether new readers may go ahead of waiting writers
+     */
+    public ReadWriteLock(Policy policy) {
+        this.policy = policy;
+
         readerLock = new SimpleReadLock();
         writerLock = new SimpleWriteLock();
 
@@ -79,6 +208,13 @@ public class ReadWriteLock {
         writers = 0;
 
         activeWriter = null;
+        version = 2; // zero is never a valid stamp
+
+        readHolds = ThreadLocal.withInitial(() -> new long[2]);
+        readWait = new LatencyHistogram();
+        writeWait = new LatencyHistogram();
+        readHold = new LatencyHistogram();
+        writeHold = new LatencyHistogram();
     }
 
     /**
@@ -99,6 +235,92 @@ public class ReadWriteLock {
         return writerLock;
     }
 
+    /**
+     * Returns the policy deciding whether new readers may go ahead of waiting
+     * writers.
+     *
+     * @return the policy
+     */
+    public Policy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * Returns the wait and hold statistics of this lock.
+     *
+     * @return a read-only view of the statistics
+     */
+    public Stats getStats() {
+        return new Stats();
+    }
+
+    /**
+     * Marks the current thread as waiting for a lock. Must be called while
+     * holding the lock object.
+     */
+    private void startWaiting() {
+        contended++;
+        if (++waiting > maxWaiting) {
+            maxWaiting = waiting;
+        }
+    }
+
+    /**
+     * Determines whether a thread asking for the read lock has to wait. Must be
+     * called while holding the lock object.
+     *
+     * @param arrived the version when the thread asked for the lock
+     * @param holding true if the thread already holds the read lock
+     * @return true if the thread has to wait
+     */
+    private boolean readerMustWait(long arrived, boolean holding) {
+        if (holding || isActiveWriter()) {
+            return false;
+        }
+        if (writers > 0) {
+            return true;
+        }
+        return switch (policy) {
+            case READER_PREFERRING -> false;
+            case WRITER_PREFERRING -> waitingWriters > 0;
+            case PHASE_FAIR -> waitingWriters > 0 && arrived == version; // no writer went since it arrived
+        };
+    }
+
+    /**
+     * Determines whether a thread asking for the write lock has to wait. Must
+     * be called while holding the lock object.
+     *
+     * @return true if the thread has to wait
+     */
+    private boolean writerMustWait() {
+        return (writers > 0 || readers > 0 || readerPass > 0) && !isActiveWriter();
+    }
+
+    /**
+     * Returns a stamp for an optimistic read, or zero if a writer currently
+     * holds the lock. The stamp must be checked with {@link #validate(long)}
+     * after reading.
+     *
+     * @return a stamp, or zero if an optimistic read is not possible right now
+     */
+    public long tryOptimisticRead() {
+        long stamp = version;
+        return (stamp & 1) == 0 ? stamp : 0;
+    }
+
+    /**
+     * Determines whether no writer has held the lock since the stamp was
+     * returned by {@link #tryOptimisticRead()}.
+     *
+     * @param stamp the stamp of the optimistic read
+     * @return true if what was read since getting the stamp is consistent
+     */
+    public boolean validate(long stamp) {
+        VarHandle.acquireFence(); // the reads being validated must happen before reading the version
+        return stamp != 0 && stamp == version;
+    }
+
     /**
      * Returns the number of active readers.
      *
@@ -163,28 +385,45 @@ public class ReadWriteLock {
     private class SimpleReadLock implements SimpleLock {
         /**
          * Controls access to the read lock. The active thread is forced to wait while
-         * there are any active writers and it is not the active writer thread. Once
+         * there are any active writers and it is not the active writer thread, or
+         * while writers are waiting if the {@link Policy} puts them first. Once
          * safe, the thread is allowed to acquire a read lock by incrementing the number
          * of active readers.
          */
         @Override
         public void lock() {
-
-            log.debug("Acquiring read lock...");
-
+            long start = System.nanoTime();
+            long[] hold = readHolds.get();
             try {
                 synchronized (lock) {
-                    while (writers > 0 && !isActiveWriter()) {
-                        lock.wait();
+                    long arrived = version;
+                    if (readerMustWait(arrived, hold[0] > 0)) {
+                        startWaiting();
+                        waitingReaders++;
+                        try {
+                            while (readerMustWait(arrived, false)) {
+                                lock.wait();
+                            }
+                        } finally {
+                            waiting--;
+                            waitingReaders--;
+                            if (readerPass > 0 && arrived != version && --readerPass == 0) {
+                                lock.notifyAll(); // the last reader of the phase, writers may go next
+                            }
+                        }
                     }
 
                     readers++;
                 }
+                long acquired = System.nanoTime();
+                readWait.record(acquired - start);
+                if (hold[0]++ == 0) {
+                    hold[1] = acquired;
+                }
             } catch (InterruptedException ex) {
                 log.catching(Level.DEBUG, ex);
                 Thread.currentThread().interrupt();
             }
-            log.debug("Read lock acquired");
         }
 
         /**
@@ -195,10 +434,8 @@ public class ReadWriteLock {
          */
         @Override
         public void unlock() throws IllegalStateException {
-            log.debug("Unlocking read lock...");
             synchronized (lock) {
                 if (readers == 0) {
-                    log.debug("No readers to unlock!");
                     throw new IllegalStateException("No readers to unlock!");
                 }
                 readers--;
@@ -206,7 +443,10 @@ public class ReadWriteLock {
                     lock.notifyAll();
                 }
             }
-            log.debug("Read lock unlocked.");
+            long[] hold = readHolds.get();
+            if (hold[0] > 0 && --hold[0] == 0) {
+                readHold.record(System.nanoTime() - hold[1]);
+            }
         }
     }
 
@@ -216,28 +456,42 @@ public class ReadWriteLock {
     private class SimpleWriteLock implements SimpleLock {
         /**
          * Controls access to the write lock. The active thread is forced to wait while
-         * there are any active readers or writers, and it is not the active writer
-         * thread. Once safe, the thread is allowed to acquire a write lock by
+         * there are any active readers or writers, or readers that go first under the
+         * {@link Policy}, and it is not the active writer thread. Once safe, the thread is allowed to acquire a write lock by
          * incrementing the number of active writers and setting the active writer
          * reference.
          */
         @Override
         public void lock() {
-            log.debug("Acquiring write lock...");
+            long start = System.nanoTime();
             try {
                 synchronized (lock) {
-                    while ((writers > 0 || readers > 0) && !isActiveWriter()) {
-                        log.debug("Writers OR Readers > 0, Gotta wait");
-                        lock.wait();
+                    if (writerMustWait()) {
+                        startWaiting();
+                        waitingWriters++;
+                        try {
+                            while (writerMustWait()) {
+                                lock.wait();
+                            }
+                        } finally {
+                            waiting--;
+                            if (--waitingWriters == 0 && writerMustWait()) {
+                                lock.notifyAll(); // gave up waiting, readers held back for it may go
+                            }
+                        }
                     }
                     activeWriter = Thread.currentThread();
-                    writers++;
+                    if (writers++ == 0) {
+                        version++;
+                        VarHandle.fullFence(); // optimistic readers must see the new version before any write
+                        writeAcquired = System.nanoTime();
+                        writeWait.record(writeAcquired - start);
+                    }
                 }
             } catch (InterruptedException ex) {
                 log.catching(Level.DEBUG, ex);
                 Thread.currentThread().interrupt();
             }
-            log.debug("Write lock acquired.");
         }
 
         /**
@@ -250,22 +504,90 @@ public class ReadWriteLock {
          */
         @Override
         public void unlock() throws IllegalStateException, ConcurrentModificationException {
-            log.debug("Unlocking write lock...");
             synchronized (lock) {
                 if (writers == 0) {
-                    log.debug("No writers to unlock!");
                     throw new IllegalStateException("No writers to unlock!");
                 } else if (!isActiveWriter()) {
-                    log.debug("Current Active writer:" + activeWriter);
                     throw new ConcurrentModificationException("Current thread does not hold write lock.");
                 }
                 writers--;
                 if (writers == 0) {
                     activeWriter = null;
+                    version++;
+                    if (policy == Policy.PHASE_FAIR) {
+                        readerPass = waitingReaders;
+                    }
+                    writeHold.record(System.nanoTime() - writeAcquired);
                     lock.notifyAll();
                 }
             }
-            log.debug("Write lock unlocked.");
+        }
+    }
+
+    /**
+     * A read-only view of how long threads waited for and held this lock.
+     */
+    public class Stats {
+        /**
+         * @return the time threads spent waiting for the read lock
+         */
+        public LatencyHistogram getReadWait() {
+            return readWait;
+        }
+
+        /**
+         * @return the time threads spent waiting for the write lock
+         */
+        public LatencyHistogram getWriteWait() {
+            return writeWait;
+        }
+
+        /**
+         * @return the time each thread held the read lock
+         */
+        public LatencyHistogram getReadHold() {
+            return readHold;
+        }
+
+        /**
+         * @return the time the write lock was held
+         */
+        public LatencyHistogram getWriteHold() {
+            return writeHold;
+        }
+
+        /**
+         * @return the number of lock acquisitions that had to wait
+         */
+        public long getContended() {
+            synchronized (lock) {
+                return contended;
+            }
+        }
+
+        /**
+         * @return the number of threads waiting for the lock right now
+         */
+        public int getWaiting() {
+            synchronized (lock) {
+                return waiting;
+            }
+        }
+
+        /**
+         * @return the largest number of threads that were waiting for the lock at once
+         */
+        public int getMaxWaiting() {
+            synchronized (lock) {
+                return maxWaiting;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return String.format("read wait: %s%nread hold: %s%nwrite wait: %s%nwrite hold: %s%n"
+                            + "%d acquisitions waited, at most %d threads waiting at once",
+                    readWait, readHold, writeWait, writeHold, getContended(), getMaxWaiting());
         }
     }
 }
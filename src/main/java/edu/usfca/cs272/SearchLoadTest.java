@@ -0,0 +1,225 @@
+package edu.usfca.cs272;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Measures a running {@link SearchServer} by sending the lines of a query file
+ * to {@code /search} from many clients at once. Each client sends its next
+ * request as soon as the last one is answered, so the number of clients is the
+ * number of searches in flight.
+ * <p>
+ * Flags: {@code -query} the query file to send, one query per line;
+ * {@code -host} and {@code -port} the server, {@code localhost} and
+ * {@value SearchServer#DEFAULT_PORT} by default; {@code -clients} the number of
+ * concurrent clients, {@value #DEFAULT_CLIENTS} by default; {@code -requests}
+ * the total number of requests, {@value #DEFAULT_REQUESTS} by default, cycling
+ * through the queries; {@code -exact} for exact searches; and {@code -k} the
+ * number of results asked for.
+ * <p>
+ * Prints the requests answered per second, the number of errors and the
+ * latency of each request as seen by the client.
+ *
+ * @author Thomas de Laveaga
+ * @see SearchServer
+ */
+public class SearchLoadTest {
+    /**
+     * Logger used for this class
+     */
+    private static final Logger log = LogManager.getLogger();
+
+    /**
+     * The default number of concurrent clients
+     */
+    public static final int DEFAULT_CLIENTS = 8;
+
+    /**
+     * The default total number of requests
+     */
+    public static final int DEFAULT_REQUESTS = 10000;
+
+    /**
+     * Percentiles printed below the summary of the latency histogram
+     */
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+
+    /**
+     * The queries to send, URL encoded
+     */
+    private final List<String> queries;
+
+    /**
+     * The server address and path, up to the query
+     */
+    private final String base;
+
+    /**
+     * Parameters added after each query, such as {@code &exact=true}
+     */
+    private final String parameters;
+
+    /**
+     * The client shared by every request
+     */
+    private final HttpClient client;
+
+    /**
+     * Index of the next request to send
+     */
+    private final AtomicInteger next;
+
+    /**
+     * Time taken to answer each request, in nanoseconds
+     */
+    private final LatencyHistogram latency;
+
+    /**
+     * Number of requests that failed or were not answered with 200 OK
+     */
+    private final LongAdder errors;
+
+    /**
+     * Constructs a new load test. Nothing is sent until {@link #run(int, int)}.
+     *
+     * @param host       the server host
+     * @param port       the server port
+     * @param queries    the queries to send, not URL encoded
+     * @param parameters parameters added after each query, URL encoded
+     */
+    public SearchLoadTest(String host, int port, List<String> queries, String parameters) {
+        this.queries = queries.stream().map(query -> URLEncoder.encode(query, UTF_8)).toList();
+        this.base = "http://" + host + ":" + port + "/search?q=";
+        this.parameters = parameters;
+        this.client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+        this.next = new AtomicInteger();
+        this.latency = new LatencyHistogram();
+        this.errors = new LongAdder();
+    }
+
+    /**
+     * Sends requests from several clients at once until every request is answered.
+     *
+     * @param clients  the number of concurrent clients
+     * @param requests the total number of requests
+     * @return the time taken, in nanoseconds
+     */
+    public long run(int clients, int requests) {
+        WorkQueue workQueue = new WorkQueue(clients);
+        long start = System.nanoTime();
+        for (int i = 0; i < clients; i++) {
+            workQueue.execute(() -> sendUntil(requests));
+        }
+        workQueue.join();
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * Sends requests one at a time until the total number has been sent.
+     *
+     * @param requests the total number of requests
+     */
+    private void sendUntil(int requests) {
+        int i;
+        while ((i = next.getAndIncrement()) < requests) {
+            URI uri = URI.create(base + queries.get(i % queries.size()) + parameters);
+            HttpRequest request = HttpRequest.newBuilder(uri).GET().build();
+            long start = System.nanoTime();
+            try {
+                HttpResponse<byte[]> response = client.send(request, HttpResponse.BodyHandlers.ofByteArray());
+                if (response.statusCode() != 200) {
+                    errors.increment();
+                    log.debug("{} answered with {}", uri, response.statusCode());
+                }
+            } catch (IOException e) {
+                errors.increment();
+                log.debug("Unable to send {}: {}", uri, e.toString());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } finally {
+                latency.record(System.nanoTime() - start);
+            }
+        }
+    }
+
+    /**
+     * @return the time taken to answer each request
+     */
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    /**
+     * @return the number of requests that failed or were not answered with 200 OK
+     */
+    public long getErrors() {
+        return errors.sum();
+    }
+
+    /**
+     * Runs a load test against a search server.
+     *
+     * @param args flag/value pairs, see the class documentation
+     */
+    public static void main(String[] args) {
+        ArgumentParser argumentParser = new ArgumentParser(args);
+        log.debug("Parsed args: {}", argumentParser);
+
+        if (!argumentParser.hasValue("-query")) {
+            System.out.println("Usage: SearchLoadTest -query <file> [-host <host>] [-port <port>]"
+                    + " [-clients <n>] [-requests <n>] [-exact] [-k <results>]");
+            return;
+        }
+        Path queryPath = argumentParser.getPath("-query");
+        List<String> queries;
+        try {
+            queries = Files.readAllLines(queryPath, UTF_8).stream().filter(line -> !line.isBlank()).toList();
+        } catch (IOException e) {
+            System.out.println("IO Error while reading the query file: " + queryPath);
+            return;
+        }
+        if (queries.isEmpty()) {
+            System.out.println("No queries in " + queryPath);
+            return;
+        }
+
+        String host = argumentParser.getString("-host", "localhost");
+        int port = argumentParser.getInteger("-port", SearchServer.DEFAULT_PORT);
+        int clients = Math.max(1, argumentParser.getInteger("-clients", DEFAULT_CLIENTS));
+        int requests = Math.max(1, argumentParser.getInteger("-requests", DEFAULT_REQUESTS));
+        StringBuilder parameters = new StringBuilder();
+        if (argumentParser.hasFlag("-exact")) {
+            parameters.append("&exact=true");
+        }
+        if (argumentParser.hasValue("-k")) {
+            parameters.append("&k=").append(argumentParser.getInteger("-k", SearchServer.DEFAULT_LIMIT));
+        }
+
+        SearchLoadTest test = new SearchLoadTest(host, port, queries, parameters.toString());
+        long elapsed = test.run(clients, requests);
+        double seconds = elapsed / 1e9;
+        LatencyHistogram latency = test.getLatency();
+        System.out.printf("%d clients, %d requests, %d errors in %.2f seconds: %.0f req/s%n",
+                clients, requests, test.getErrors(), seconds, requests / seconds);
+        System.out.printf("Latency: %s%n", latency);
+        for (double percentile : PERCENTILES) {
+            System.out.printf("  p%-5s <= %s%n", String.valueOf(percentile).replaceFirst("\\.0$", ""),
+                    LatencyHistogram.format(latency.getPercentile(percentile)));
+        }
+    }
+}
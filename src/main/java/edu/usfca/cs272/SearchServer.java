@@ -0,0 +1,281 @@
+package edu.usfca.cs272;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import edu.usfca.cs272.InvertedWordIndex.SearchResult;
+import opennlp.tools.stemmer.Stemmer;
+import opennlp.tools.stemmer.snowball.SnowballStemmer;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static opennlp.tools.stemmer.snowball.SnowballStemmer.ALGORITHM.ENGLISH;
+
+/**
+ * Answers searches over HTTP while keeping the index in memory, using the
+ * server built into the JDK. Requests are handled on a {@link WorkQueue}, so
+ * many searches run at once under the read lock of the index.
+ * <p>
+ * {@code GET /search?q=...&exact=...&k=...} stems the query like a line of a
+ * query file and returns its results as a minified JSON object with the same
+ * layout as the results file: the stemmed query mapped to an array of results.
+ * {@code exact} is true for an exact search, and {@code k} limits the number of
+ * results, {@value #DEFAULT_LIMIT} by default or all of them if 0.
+ *
+ * @author Thomas de Laveaga
+ * @see ThreadSafeQueryFileHandler
+ */
+public class SearchServer {
+    /**
+     * Logger used for this class
+     */
+    private static final Logger log = LogManager.getLogger();
+
+    /**
+     * The default port to listen on
+     */
+    public static final int DEFAULT_PORT = 8080;
+
+    /**
+     * The default number of results returned for a search
+     */
+    public static final int DEFAULT_LIMIT = 10;
+
+    /**
+     * Number of connections waiting to be accepted before new ones are refused
+     */
+    private static final int BACKLOG = 128;
+
+    /**
+     * One stemmer for each thread, since stemmers are not thread safe
+     */
+    private static final ThreadLocal<Stemmer> stemmers = ThreadLocal.withInitial(() -> new SnowballStemmer(ENGLISH));
+
+    static {
+        // the JDK server sends the headers and the body separately, so with Nagle's algorithm
+        // every response waits on a delayed ACK (about 40 ms) unless the property is already set
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+    }
+
+    /**
+     * The index to search
+     */
+    private final ThreadSafeInvertedWordIndex index;
+
+    /**
+     * The HTTP server
+     */
+    private final HttpServer server;
+
+    /**
+     * Counted down once the server is stopped
+     */
+    private final CountDownLatch stopped;
+
+    /**
+     * Time taken to answer each search, in nanoseconds
+     */
+    private final LatencyHistogram latency;
+
+    /**
+     * Number of requests answered with an error
+     */
+    private final LongAdder errors;
+
+    /**
+     * Constructs a new server listening on a port. It does not answer requests
+     * until {@link #start()} is called.
+     *
+     * @param index     the index to search
+     * @param workQueue the work queue to handle requests on
+     * @param port      the port to listen on, or 0 for any free port
+     * @throws IOException if unable to listen on the port
+     */
+    public SearchServer(ThreadSafeInvertedWordIndex index, WorkQueue workQueue, int port) throws IOException {
+        this.index = index;
+        this.server = HttpServer.create(new InetSocketAddress(port), BACKLOG);
+        this.stopped = new CountDownLatch(1);
+        this.latency = new LatencyHistogram();
+        this.errors = new LongAdder();
+        server.createContext("/search", this::search);
+        server.setExecutor(workQueue);
+    }
+
+    /**
+     * Starts answering requests.
+     */
+    public void start() {
+        server.start();
+        log.info("Search server listening on port {}", getPort());
+    }
+
+    /**
+     * Stops the server, waiting up to a second for searches being answered.
+     */
+    public void stop() {
+        if (stopped.getCount() > 0) {
+            server.stop(1);
+            stopped.countDown();
+            log.info("Search server stopped: {}", this);
+        }
+    }
+
+    /**
+     * Waits until the server is stopped.
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void awaitStop() throws InterruptedException {
+        stopped.await();
+    }
+
+    /**
+     * @return the port the server listens on
+     */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * @return the time taken to answer each search
+     */
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    /**
+     * Answers a single search request.
+     *
+     * @param exchange the request and its response
+     * @throws IOException if unable to send the response
+     */
+    private void search(HttpExchange exchange) throws IOException {
+        long start = System.nanoTime();
+        try (exchange) {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.getResponseHeaders().set("Allow", "GET");
+                sendError(exchange, 405, "Only GET is supported");
+                return;
+            }
+            Map<String, String> parameters = parseQuery(exchange.getRequestURI().getRawQuery());
+            String query = parameters.get("q");
+            if (query == null) {
+                sendError(exchange, 400, "Missing q parameter");
+                return;
+            }
+            boolean exact = Boolean.parseBoolean(parameters.get("exact")) || "1".equals(parameters.get("exact"));
+            int limit;
+            try {
+                limit = Integer.parseInt(parameters.getOrDefault("k", String.valueOf(DEFAULT_LIMIT)));
+            } catch (NumberFormatException e) {
+                limit = -1;
+            }
+            if (limit < 0) {
+                sendError(exchange, 400, "k must be a number of results, or 0 for all");
+                return;
+            }
+
+            TreeSet<String> stems = WordCleaner.uniqueStems(query, stemmers.get());
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (Writer writer = new PrettyJsonWriter.FastWriter(new OutputStreamWriter(bytes, UTF_8), 1 << 12)) {
+                CompactJsonWriter.startObject(writer, false);
+                if (!stems.isEmpty()) {
+                    List<SearchResult> results = index.search(stems, exact);
+                    if (limit > 0 && results.size() > limit) {
+                        results = results.subList(0, limit);
+                    }
+                    CompactJsonWriter.writeResultsEntry(String.join(" ", stems), results, writer, false, true);
+                }
+                CompactJsonWriter.endObject(writer, false);
+            }
+            send(exchange, 200, "application/json; charset=utf-8", bytes.toByteArray());
+        } catch (IOException | RuntimeException e) {
+            errors.increment();
+            log.warn("Unable to answer {}: {}", exchange.getRequestURI(), e.toString());
+            throw e;
+        } finally {
+            latency.record(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Decodes the parameters of a query string. Later values of a parameter
+     * replace earlier ones.
+     *
+     * @param rawQuery the query string, still URL encoded, or null
+     * @return the parameters mapped to their values
+     */
+    private static Map<String, String> parseQuery(String rawQuery) {
+        Map<String, String> parameters = new HashMap<>();
+        if (rawQuery == null) {
+            return parameters;
+        }
+        for (String pair : rawQuery.split("&")) {
+            if (pair.isEmpty()) {
+                continue;
+            }
+            int equals = pair.indexOf('=');
+            String name = equals < 0 ? pair : pair.substring(0, equals);
+            String value = equals < 0 ? "" : pair.substring(equals + 1);
+            try {
+                parameters.put(URLDecoder.decode(name, UTF_8), URLDecoder.decode(value, UTF_8));
+            } catch (IllegalArgumentException e) {
+                log.debug("Ignoring badly encoded parameter: {}", pair);
+            }
+        }
+        return parameters;
+    }
+
+    /**
+     * Sends an error as a JSON object with a message.
+     *
+     * @param exchange the request and its response
+     * @param status   the HTTP status code
+     * @param message  the error message, which must not need escaping
+     * @throws IOException if unable to send the response
+     */
+    private void sendError(HttpExchange exchange, int status, String message) throws IOException {
+        errors.increment();
+        send(exchange, status, "application/json; charset=utf-8",
+                ("{\"error\":\"" + message + "\"}").getBytes(UTF_8));
+    }
+
+    /**
+     * Sends a complete response.
+     *
+     * @param exchange    the request and its response
+     * @param status      the HTTP status code
+     * @param contentType the type of the body
+     * @param body        the body
+     * @throws IOException if unable to send the response
+     */
+    private static void send(HttpExchange exchange, int status, String contentType, byte[] body)
+            throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d errors, latency %s", errors.sum(), latency);
+    }
+}
@@ -0,0 +1,136 @@
+package edu.usfca.cs272;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A group of related tasks run on a shared {@link WorkQueue} that tracks its
+ * own pending work. Unlike {@link WorkQueue#finish()}, which waits for every
+ * task in the queue, waiting on a group only waits for the tasks of that group,
+ * so several groups (for example a crawl, a text build and a batch of queries)
+ * can share one pool and still complete independently.
+ * <p>
+ * A group is open until {@link #close()} is called. Tasks of the group may keep
+ * adding tasks to it after it is closed. The group completes once it is closed
+ * and every one of its tasks has finished; no tasks may be added after that.
+ *
+ * @author Thomas de Laveaga
+ * @see WorkQueue
+ */
+public class TaskGroup implements Executor {
+    /**
+     * Logger used for this class
+     */
+    private static final Logger log = LogManager.getLogger();
+
+    /**
+     * The work queue running the tasks
+     */
+    private final WorkQueue workQueue;
+
+    /**
+     * Number of tasks not finished yet, plus one while the group is open
+     */
+    private final AtomicInteger pending;
+
+    /**
+     * Whether {@link #close()} has been called
+     */
+    private final AtomicBoolean closed;
+
+    /**
+     * Completed once the group is closed and every task has finished
+     */
+    private final CompletableFuture<Void> completion;
+
+    /**
+     * Constructs a new, open group of tasks run on the provided work queue.
+     *
+     * @param workQueue the work queue to run the tasks on
+     */
+    public TaskGroup(WorkQueue workQueue) {
+        this.workQueue = workQueue;
+        this.pending = new AtomicInteger(1);
+        this.closed = new AtomicBoolean(false);
+        this.completion = new CompletableFuture<>();
+    }
+
+    /**
+     * Adds a task to this group and to the work queue.
+     *
+     * @param task the task to run
+     * @throws IllegalStateException if the group has already completed
+     */
+    @Override
+    public void execute(Runnable task) {
+        if (pending.getAndUpdate(count -> count == 0 ? 0 : count + 1) == 0) {
+            throw new IllegalStateException("Task group already completed");
+        }
+        workQueue.execute(() -> {
+            try {
+                task.run();
+            } finally {
+                release();
+            }
+        });
+    }
+
+    /**
+     * Closes the group. The group completes once every task, including tasks
+     * added by other tasks of this group, has finished.
+     *
+     * @return a future completed when the group completes
+     */
+    public CompletableFuture<Void> close() {
+        if (closed.compareAndSet(false, true)) {
+            release();
+        }
+        return completion;
+    }
+
+    /**
+     * Closes the group and waits for it to complete.
+     */
+    public void finish() {
+        try {
+            close().get();
+        } catch (InterruptedException e) {
+            System.err.println("Warning: Task group interrupted while finishing.");
+            log.catching(Level.DEBUG, e);
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            log.catching(Level.DEBUG, e); // never completed exceptionally
+        }
+    }
+
+    /**
+     * @return true if the group is closed and every task has finished
+     */
+    public boolean isDone() {
+        return completion.isDone();
+    }
+
+    /**
+     * @return the number of tasks of this group that have not finished
+     */
+    public int getPending() {
+        int count = pending.get();
+        return closed.get() ? count : Math.max(0, count - 1);
+    }
+
+    /**
+     * Marks one task, or the open state of the group, as done.
+     */
+    private void release() {
+        if (pending.decrementAndGet() == 0) {
+            completion.complete(null);
+        }
+    }
+}
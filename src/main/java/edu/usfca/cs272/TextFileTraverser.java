@@ -5,6 +5,7 @@ import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.function.Consumer;
 
 /**
  * Returns an Arraylist of text files found in a directory
@@ -21,31 +22,42 @@ public class TextFileTraverser {
      */
     public static ArrayList<Path> scanDirectory(Path userPath) throws IOException {
         ArrayList<Path> files = new ArrayList<>();
+        traverse(userPath, files::add);
+        return files;
+    }
 
+    /**
+     * Passes each text file to the consumer as soon as it is found, instead of
+     * collecting them in a list first. If provided with a file and not a dir,
+     * passes just that file. Lets a consumer that submits work to a bounded
+     * {@link WorkQueue} slow the traversal down to the speed of the workers.
+     *
+     * @param userPath path given to Driver by user params
+     * @param consumer what to do with each file found
+     * @throws IOException if an IO Exception occurs while scanning
+     */
+    public static void traverse(Path userPath, Consumer<Path> consumer) throws IOException {
         if (Files.isDirectory(userPath)) {
-            scanSubDirs(files, userPath);
+            scanSubDirs(consumer, userPath);
         } else {
-            files.add(userPath); // ^-^
+            consumer.accept(userPath); // ^-^
         }
-
-        return files;
-
     }
 
     /**
-     * Recursive step for scanDirectory()
+     * Recursive step for traverse()
      *
-     * @param files  the list of files to add new ones to
-     * @param subdir the subdirectory to scan
+     * @param consumer what to do with each file found
+     * @param subdir   the subdirectory to scan
      * @throws IOException if an IO Exception occurs while scanning
      */
-    private static void scanSubDirs(ArrayList<Path> files, Path subdir) throws IOException {
+    private static void scanSubDirs(Consumer<Path> consumer, Path subdir) throws IOException {
         try (DirectoryStream<Path> stream = Files.newDirectoryStream(subdir)) {
             for (Path file : stream) {
                 if (Files.isDirectory(file)) {
-                    scanSubDirs(files, file);
+                    scanSubDirs(consumer, file);
                 } else if (isTextFile(file)) {
-                    files.add(file); // ^-^
+                    consumer.accept(file); // ^-^
                 }
             }
         }
@@ -1,5 +1,9 @@
 package edu.usfca.cs272;
 
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.DataOutput;
 import java.io.IOException;
 import java.io.Writer;
 import java.nio.file.Path;
@@ -7,13 +11,52 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 
 /**
  * Thread safe version of InvertedWordIndex
+ * <p>
+ * In optimistic mode, searches, lookups, counts and the number of words run
+ * without the read lock against a read-only copy of the index. The copy is
+ * published through an atomic reference along with the lock stamp it was made
+ * at, and is only used while {@link ReadWriteLock#tryOptimisticRead()} still
+ * returns that stamp, so no writer has changed the index since. Readers never
+ * walk the trees a writer is changing, and never write to the readers counter
+ * of the lock. When the copy is out of date, reads take the read lock as
+ * usual, and once enough of them happen at the same stamp the copy is made
+ * again. How many is enough starts at {@value #MIN_COPY_AFTER} and doubles
+ * every time a copy is dropped before answering that many reads, so an index
+ * that keeps changing is not copied on every change, and halves every time a
+ * copy pays off. The copy roughly doubles the memory used by the index.
+ * <p>
+ * After {@link #recover(WriteAheadLog)}, every change is also added to a
+ * write-ahead log while the write lock is held, so the log has the changes in
+ * the order they were made, and a snapshot is written once the log has grown
+ * enough.
  */
 public class ThreadSafeInvertedWordIndex extends InvertedWordIndex {
+    /**
+     * Logger used for this class
+     */
+    private static final Logger log = LogManager.getLogger();
 
+    /**
+     * Smallest number of reads under the read lock at the same stamp after
+     * which the read-only copy is made again
+     */
+    private static final int MIN_COPY_AFTER = 16;
+
+    /**
+     * Largest number of reads under the read lock at the same stamp after
+     * which the read-only copy is made again
+     */
+    private static final int MAX_COPY_AFTER = 1 << 20;
 
     /**
      * Manages a read and write lock. Improves efficiency for multithreading since queries involve only reading
@@ -21,49 +64,299 @@ public class ThreadSafeInvertedWordIndex extends InvertedWordIndex {
      */
     private final ReadWriteLock lock;
 
+    /**
+     * Whether reads are first tried on the read-only copy without the read lock
+     */
+    private final boolean optimistic;
+
+    /**
+     * Number of optimistic reads answered from the read-only copy
+     */
+    private final LongAdder optimisticHits;
+
+    /**
+     * Number of optimistic reads that had to take the read lock
+     */
+    private final LongAdder optimisticMisses;
+
+    /**
+     * The read-only copy of the index, or null
+     */
+    private final AtomicReference<Snapshot> snapshot;
+
+    /**
+     * Number of reads under the read lock at the same stamp after which the
+     * read-only copy is made again
+     */
+    private volatile int copyAfter;
+
+    /**
+     * The stamp of the last reads that had to take the read lock
+     */
+    private volatile long missedStamp;
+
+    /**
+     * Number of reads that took the read lock at {@link #missedStamp}
+     */
+    private final AtomicInteger missed;
+
+    /**
+     * Whether a thread is making the read-only copy
+     */
+    private final AtomicBoolean copying;
+
+    /**
+     * The log every change is added to, or null
+     */
+    private volatile WriteAheadLog wal;
+
+    /**
+     * Whether a thread is writing a snapshot of the write-ahead log
+     */
+    private final AtomicBoolean checkpointing;
+
     /**
      * Constructs a new instance of this class
      */
     public ThreadSafeInvertedWordIndex() {
+        this(false);
+    }
+
+    /**
+     * Constructs a new instance of this class
+     *
+     * @param optimistic true to search a read-only copy without the read lock when it is up to date
+     */
+    public ThreadSafeInvertedWordIndex(boolean optimistic) {
+        this(optimistic, ReadWriteLock.Policy.READER_PREFERRING);
+    }
+
+    /**
+     * Constructs a new instance of this class
+     *
+     * @param optimistic true to search a read-only copy without the read lock when it is up to date
+     * @param policy     decides whether queries may go ahead of waiting writes
+     */
+    public ThreadSafeInvertedWordIndex(boolean optimistic, ReadWriteLock.Policy policy) {
         super();
-        this.lock = new ReadWriteLock();
+        this.lock = new ReadWriteLock(policy);
+        this.optimistic = optimistic;
+        this.optimisticHits = new LongAdder();
+        this.optimisticMisses = new LongAdder();
+        this.snapshot = new AtomicReference<>();
+        this.copyAfter = MIN_COPY_AFTER;
+        this.missed = new AtomicInteger();
+        this.copying = new AtomicBoolean();
+        this.checkpointing = new AtomicBoolean();
+    }
+
+    /**
+     * Reads the index. In optimistic mode the read-only copy is read without
+     * the lock if no writer has held the lock since it was made; otherwise the
+     * index is read under the read lock.
+     *
+     * @param copied reads the read-only copy
+     * @param locked reads this index, called with the read lock held
+     * @param <T>    the type of the result
+     * @return the result of the read
+     */
+    private <T> T read(Function<InvertedWordIndex, T> copied, Supplier<T> locked) {
+        if (optimistic) {
+            long stamp = lock.tryOptimisticRead();
+            Snapshot current = snapshot.get(); // read after the stamp, so a copy made at that stamp is seen whole
+            if (stamp != 0 && current != null && current.stamp == stamp) {
+                optimisticHits.increment();
+                current.reads.increment();
+                return copied.apply(current.index);
+            }
+            optimisticMisses.increment();
+        }
+        lock.read().lock();
+        try {
+            T result = locked.get();
+            if (optimistic) {
+                copyIfSettled();
+            }
+            return result;
+        } finally {
+            lock.read().unlock();
+        }
+    }
+
+    /**
+     * Makes the read-only copy again once enough reads have had to take the
+     * read lock since the index last changed. Drops a copy that is out of date
+     * so it does not hold on to memory while the index keeps changing, and
+     * adjusts how many reads are enough by how many reads that copy answered.
+     * Must hold the read lock, so the stamp does not change while copying.
+     */
+    private void copyIfSettled() {
+        long stamp = lock.tryOptimisticRead();
+        Snapshot current = snapshot.get();
+        if (stamp == 0 || (current != null && current.stamp == stamp)) {
+            return; // this thread also holds the write lock, or another reader just made the copy
+        }
+        if (current != null && snapshot.compareAndSet(current, null)) {
+            copyAfter = current.reads.sum() < copyAfter
+                    ? Math.min(copyAfter * 2, MAX_COPY_AFTER)
+                    : Math.max(copyAfter / 2, MIN_COPY_AFTER);
+        }
+        if (missedStamp != stamp) {
+            missedStamp = stamp;
+            missed.set(0);
+        }
+        if (missed.incrementAndGet() >= copyAfter && copying.compareAndSet(false, true)) {
+            try {
+                snapshot.set(new Snapshot(stamp, super.copy()));
+                log.debug("Made a read-only copy of the index at stamp {}", stamp);
+            } finally {
+                copying.set(false);
+            }
+        }
+    }
+
+    /**
+     * @return true if reads are first tried on a read-only copy without the read lock
+     */
+    public boolean isOptimistic() {
+        return optimistic;
+    }
+
+    /**
+     * @return the wait and hold statistics of the lock of this index
+     */
+    public ReadWriteLock.Stats getLockStats() {
+        return lock.getStats();
+    }
+
+    /**
+     * @return the number of optimistic reads answered from the read-only copy
+     */
+    public long getOptimisticHits() {
+        return optimisticHits.sum();
+    }
+
+    /**
+     * @return the number of optimistic reads that had to take the read lock
+     */
+    public long getOptimisticMisses() {
+        return optimisticMisses.sum();
     }
 
     @Override
     public void add(String word, String location, Integer position) {
+        WriteAheadLog wal = this.wal;
+        byte[] record = wal == null ? null : WriteAheadLog.encodeAdd(word, location, position);
         lock.write().lock();
         try {
             super.add(word, location, position);
+            if (record != null) {
+                wal.append(record);
+            }
         } finally {
             lock.write().unlock();
             // make sure we unlock, even if there's a runtime exception
         }
+        checkpointIfNeeded(wal);
     }
 
     @Override
     public void addAll(ArrayList<String> words, String location,
                        Integer position) {
+        WriteAheadLog wal = this.wal;
+        byte[] record = wal == null ? null : WriteAheadLog.encodeAddAll(words, location, position);
         lock.write().lock();
         try {
             for (String word : words) {
                 super.add(word, location, position++);
             }
+            if (record != null) {
+                wal.append(record);
+            }
         } finally {
             lock.write().unlock();
         }
+        checkpointIfNeeded(wal);
     }
 
 
     @Override
     public void addAll(InvertedWordIndex index) {
+        WriteAheadLog wal = this.wal;
+        // encoded before taking the lock so writers do not wait on it
+        byte[] record = wal == null ? null : WriteAheadLog.encodeAddAll(index);
         lock.write().lock();
         try {
             super.addAll(index);
+            if (record != null) {
+                wal.append(record);
+            }
+        } finally {
+            lock.write().unlock();
+        }
+        checkpointIfNeeded(wal);
+    }
+
+    /**
+     * Restores this index from a write-ahead log and adds every later change to
+     * the log. Must be called before anything is added to this index.
+     *
+     * @param wal the write-ahead log to restore from and write to
+     * @return the number of log records replayed on top of the snapshot
+     * @throws IOException if unable to read the log or snapshot
+     */
+    public long recover(WriteAheadLog wal) throws IOException {
+        lock.write().lock();
+        try {
+            long replayed = wal.recover(this);
+            this.wal = wal;
+            return replayed;
         } finally {
             lock.write().unlock();
         }
     }
 
+    /**
+     * Writes a snapshot of this index to its write-ahead log and empties the
+     * log. Changes wait until the snapshot is written.
+     *
+     * @throws IOException if unable to write the snapshot
+     * @throws IllegalStateException if this index has no write-ahead log
+     */
+    public void checkpoint() throws IOException {
+        WriteAheadLog wal = this.wal;
+        if (wal == null) {
+            throw new IllegalStateException("No write-ahead log to checkpoint");
+        }
+        lock.read().lock();
+        try {
+            wal.writeSnapshot(this);
+        } finally {
+            lock.read().unlock();
+        }
+    }
+
+    /**
+     * Writes a snapshot if the write-ahead log has grown enough and no other
+     * thread is already writing one. Failures are logged, since the log still
+     * has every change.
+     *
+     * @param wal the write-ahead log, or null
+     */
+    private void checkpointIfNeeded(WriteAheadLog wal) {
+        if (wal != null && wal.needsSnapshot() && checkpointing.compareAndSet(false, true)) {
+            try {
+                if (wal.needsSnapshot()) {
+                    checkpoint();
+                }
+            } catch (IOException e) {
+                log.warn("Unable to write a write-ahead log snapshot: {}", e.getMessage());
+            } finally {
+                checkpointing.set(false);
+            }
+        }
+    }
+
     @Override
     public Set<String> getLocations(String word) {
         lock.read().lock();
@@ -86,12 +379,7 @@ public class ThreadSafeInvertedWordIndex extends InvertedWordIndex {
 
     @Override
     public boolean contains(String word) {
-        lock.read().lock();
-        try {
-            return super.contains(word);
-        } finally {
-            lock.read().unlock();
-        }
+        return read(copy -> copy.contains(word), () -> super.contains(word));
     }
 
     @Override
@@ -116,22 +404,12 @@ public class ThreadSafeInvertedWordIndex extends InvertedWordIndex {
 
     @Override
     public Integer getCount(String location) {
-        lock.read().lock();
-        try {
-            return super.getCount(location);
-        } finally {
-            lock.read().unlock();
-        }
+        return read(copy -> copy.getCount(location), () -> super.getCount(location));
     }
 
     @Override
     public int size() {
-        lock.read().lock();
-        try {
-            return super.size();
-        } finally {
-            lock.read().unlock();
-        }
+        return read(InvertedWordIndex::size, () -> super.size());
     }
 
     /**
@@ -142,12 +420,7 @@ public class ThreadSafeInvertedWordIndex extends InvertedWordIndex {
      */
     @Override
     public List<SearchResult> exactSearch(Set<String> queries) {
-        lock.read().lock();
-        try {
-            return super.exactSearch(queries);
-        } finally {
-            lock.read().unlock();
-        }
+        return read(copy -> copy.exactSearch(queries), () -> super.exactSearch(queries));
     }
 
     /**
@@ -159,15 +432,22 @@ public class ThreadSafeInvertedWordIndex extends InvertedWordIndex {
      */
     @Override
     public List<SearchResult> partialSearch(Set<String> queries) {
-        lock.read().lock();
-        try {
-            return super.partialSearch(queries);
-        } finally {
-            lock.read().unlock();
-        }
+        return read(copy -> copy.partialSearch(queries), () -> super.partialSearch(queries));
     }
 
 
+    /**
+     * Searches a batch of queries under a single read lock
+     *
+     * @param queries     the queries to search, each a set of stemmed words
+     * @param exactSearch true for exact, false for partial
+     * @return the results of each query, in the order of the queries
+     */
+    @Override
+    public List<List<SearchResult>> searchAll(List<? extends Set<String>> queries, boolean exactSearch) {
+        return read(copy -> copy.searchAll(queries, exactSearch), () -> super.searchAll(queries, exactSearch));
+    }
+
     /**
      * Converts this Word Index to JSON and returns as a string
      *
@@ -216,6 +496,36 @@ public class ThreadSafeInvertedWordIndex extends InvertedWordIndex {
         }
     }
 
+    /**
+     * Writes this index to file as JSON in parallel. The read lock is held until
+     * every range is written, so the workers see an unchanging index. Must not
+     * be called while tasks that write to this index are queued, since they
+     * could take up every worker waiting for the lock.
+     *
+     * @param path      the path to output the json file to
+     * @param workQueue the work queue to use
+     * @throws IOException if unable to write the file
+     */
+    @Override
+    public void toJSON(Path path, WorkQueue workQueue) throws IOException {
+        lock.read().lock();
+        try {
+            super.toJSON(path, workQueue);
+        } finally {
+            lock.read().unlock();
+        }
+    }
+
+    @Override
+    public void toJSON(Writer writer, OutputFormat format) throws IOException {
+        lock.read().lock();
+        try {
+            super.toJSON(writer, format);
+        } finally {
+            lock.read().unlock();
+        }
+    }
+
     /**
      * Converts the current word count to JSON
      *
@@ -231,4 +541,66 @@ public class ThreadSafeInvertedWordIndex extends InvertedWordIndex {
             lock.read().unlock();
         }
     }
+
+    @Override
+    public void wordCountToJSON(Writer writer, OutputFormat format) throws IOException {
+        lock.read().lock();
+        try {
+            super.wordCountToJSON(writer, format);
+        } finally {
+            lock.read().unlock();
+        }
+    }
+
+    @Override
+    public InvertedWordIndex copy() {
+        lock.read().lock();
+        try {
+            return super.copy();
+        } finally {
+            lock.read().unlock();
+        }
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+        lock.read().lock();
+        try {
+            super.write(out);
+        } finally {
+            lock.read().unlock();
+        }
+    }
+
+    /**
+     * A read-only copy of the index and the lock stamp it was made at
+     */
+    private static class Snapshot {
+        /**
+         * The lock stamp the copy was made at
+         */
+        private final long stamp;
+
+        /**
+         * The copy, which is never changed
+         */
+        private final InvertedWordIndex index;
+
+        /**
+         * Number of reads the copy answered
+         */
+        private final LongAdder reads;
+
+        /**
+         * Constructs a new instance of this class
+         *
+         * @param stamp the lock stamp the copy was made at
+         * @param index the copy
+         */
+        private Snapshot(long stamp, InvertedWordIndex index) {
+            this.stamp = stamp;
+            this.index = index;
+            this.reads = new LongAdder();
+        }
+    }
 }
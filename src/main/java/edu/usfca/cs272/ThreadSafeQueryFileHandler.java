@@ -6,9 +6,16 @@ import opennlp.tools.stemmer.snowball.SnowballStemmer;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 
 import static opennlp.tools.stemmer.snowball.SnowballStemmer.ALGORITHM.ENGLISH;
 
@@ -16,6 +23,16 @@ import static opennlp.tools.stemmer.snowball.SnowballStemmer.ALGORITHM.ENGLISH;
 /**
  * Thread safe version of QueryFileHandler
  * Uses a {@link WorkQueue to execute tasks}
+ * <p>
+ * Query lines are searched in batches, one task per batch. A batch stems its
+ * lines with one stemmer, drops lines whose stems repeat a line already in the
+ * batch, and claims the rest in the result store. Only the queries it claimed
+ * are searched, together with {@link InvertedWordIndex#searchAll(List, boolean)}.
+ * <p>
+ * The result store is a concurrent map from each query to a future of its
+ * results. The first task to put a future for a query searches it; any other
+ * task with the same query skips it, and readers wait on the future. Results
+ * are only sorted by query when they are written out.
  */
 public class ThreadSafeQueryFileHandler implements QueryFileHandlerInterface {
 
@@ -26,9 +43,9 @@ public class ThreadSafeQueryFileHandler implements QueryFileHandlerInterface {
 
     /**
      * Search results data structure
-     * String location, List SearchResult
+     * String query, future of the List SearchResult, completed once searched
      */
-    private final Map<String, List<SearchResult>> results;
+    private final ConcurrentHashMap<String, CompletableFuture<List<SearchResult>>> results;
 
 
     /**
@@ -36,6 +53,22 @@ public class ThreadSafeQueryFileHandler implements QueryFileHandlerInterface {
      */
     private final WorkQueue workQueue;
 
+    /**
+     * Number of query lines searched by each task
+     */
+    private final int batchSize;
+
+    /**
+     * The default number of query lines searched by each task
+     */
+    public static final int DEFAULT_BATCH_SIZE = 64;
+
+    /**
+     * The most queries searched ahead of the query being written when
+     * streaming results
+     */
+    public static final int STREAM_WINDOW = 4096;
+
     /**
      * Logger used for this class
      */
@@ -49,23 +82,187 @@ public class ThreadSafeQueryFileHandler implements QueryFileHandlerInterface {
      * @param workQueue associated workQueue
      */
     public ThreadSafeQueryFileHandler(ThreadSafeInvertedWordIndex wordIndex, WorkQueue workQueue) {
+        this(wordIndex, workQueue, DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * Constructs a new instance of this class
+     *
+     * @param wordIndex associated wordIndex
+     * @param workQueue associated workQueue
+     * @param batchSize number of query lines searched by each task
+     */
+    public ThreadSafeQueryFileHandler(ThreadSafeInvertedWordIndex wordIndex, WorkQueue workQueue, int batchSize) {
         this.wordIndex = wordIndex;
-        this.results = new TreeMap<>();
+        this.results = new ConcurrentHashMap<>();
         this.workQueue = workQueue;
+        this.batchSize = Math.max(1, batchSize);
         log.debug("ThreadSafeQueryFileHandler initialized.");
     }
 
     @Override
     public void parseQuery(Path queryInput, boolean exactSearch) throws IOException {
-        QueryFileHandlerInterface.super.parseQuery(queryInput, exactSearch);
-        log.debug("parseQuery: called .finish() with {} remaining tasks and {} tasks pending",
-                workQueue.getTaskSize(), workQueue.getPending());
-        workQueue.finish();
+        parseQueryAsync(queryInput, exactSearch).join();
+    }
+
+    /**
+     * Reads queries from a given {@link Path} line by line and searches them in batches on the
+     * work queue without waiting for the searches to finish. Only the searches of this file are tracked, so
+     * other work can share the same work queue.
+     *
+     * @param queryInput  the location of the query file
+     * @param exactSearch true for exact search, false to allow partial matches
+     * @return a future completed once every query has been searched
+     * @throws IOException if an IO error occurs while attempting to read from the file
+     * @see TaskGroup
+     */
+    public CompletableFuture<Void> parseQueryAsync(Path queryInput, boolean exactSearch) throws IOException {
+        TaskGroup group = new TaskGroup(workQueue);
+        try (BufferedReader buffReader = Files.newBufferedReader(queryInput)) {
+            List<String> batch = new ArrayList<>(batchSize);
+            String line;
+            while ((line = buffReader.readLine()) != null) {
+                batch.add(line);
+                if (batch.size() == batchSize) {
+                    group.execute(new QueryTask(batch, exactSearch));
+                    batch = new ArrayList<>(batchSize);
+                }
+            }
+            if (!batch.isEmpty()) {
+                group.execute(new QueryTask(batch, exactSearch));
+            }
+        }
+        return group.close();
+    }
+
+    /**
+     * Searches the queries of a file and writes their results as they
+     * complete, instead of keeping every result until the end. The output is
+     * the same as {@link #resultsToJSON(Path)} would write after
+     * {@link #parseQuery(Path, boolean)}, but the results are not kept in this
+     * handler.
+     * <p>
+     * Every line is stemmed first, since the sorted order of the queries is only
+     * known once all of them are read. The queries are then searched in sorted
+     * order, at most {@link #STREAM_WINDOW} ahead of the one being written, and
+     * each is written as soon as it and every query before it are done. Must
+     * not be called from a worker of the work queue.
+     *
+     * @param queryInput  the location of the query file
+     * @param exactSearch true for exact search, false to allow partial matches
+     * @param output      where to write the results
+     * @throws IOException if unable to read the queries or write the results
+     */
+    public void streamResults(Path queryInput, boolean exactSearch, Path output) throws IOException {
+        try (Writer writer = PrettyJsonWriter.newWriter(output)) {
+            streamResults(queryInput, exactSearch, writer, OutputFormat.PRETTY);
+        }
+    }
+
+    /**
+     * Searches the queries of a file and writes their results in the given
+     * format as they complete.
+     *
+     * @param queryInput  the location of the query file
+     * @param exactSearch true for exact search, false to allow partial matches
+     * @param writer      the writer to write the results to
+     * @param format      the layout of the JSON
+     * @throws IOException if unable to read the queries or write the results
+     * @see #streamResults(Path, boolean, Path)
+     */
+    public void streamResults(Path queryInput, boolean exactSearch, Writer writer, OutputFormat format)
+            throws IOException {
+        ConcurrentSkipListMap<String, TreeSet<String>> queries = new ConcurrentSkipListMap<>();
+        TaskGroup stemming = new TaskGroup(workQueue);
+        try (BufferedReader buffReader = Files.newBufferedReader(queryInput)) {
+            List<String> batch = new ArrayList<>(batchSize);
+            String line;
+            while ((line = buffReader.readLine()) != null) {
+                batch.add(line);
+                if (batch.size() == batchSize) {
+                    stemming.execute(new StemTask(batch, queries));
+                    batch = new ArrayList<>(batchSize);
+                }
+            }
+            if (!batch.isEmpty()) {
+                stemming.execute(new StemTask(batch, queries));
+            }
+        } finally {
+            stemming.finish();
+        }
+
+        TaskGroup searching = new TaskGroup(workQueue);
+        ArrayDeque<CompletableFuture<List<SearchResult>>> window = new ArrayDeque<>();
+        Iterator<TreeSet<String>> unsearched = queries.values().iterator();
+        boolean lines = format == OutputFormat.NDJSON;
+        try {
+            CompactJsonWriter.startObject(writer, lines);
+            boolean first = true;
+            for (String key : queries.keySet()) {
+                while (window.size() < STREAM_WINDOW && unsearched.hasNext()) {
+                    List<TreeSet<String>> batch = new ArrayList<>(batchSize);
+                    List<CompletableFuture<List<SearchResult>>> futures = new ArrayList<>(batchSize);
+                    while (batch.size() < batchSize && unsearched.hasNext()) {
+                        batch.add(unsearched.next());
+                        futures.add(new CompletableFuture<>());
+                    }
+                    window.addAll(futures);
+                    searching.execute(() -> search(batch, futures, exactSearch));
+                }
+
+                List<SearchResult> searched;
+                try {
+                    searched = window.remove().join();
+                } catch (CompletionException e) {
+                    log.warn("Leaving out query {} that failed: {}", key, e.getCause());
+                    continue;
+                }
+                if (format != OutputFormat.PRETTY) {
+                    CompactJsonWriter.writeResultsEntry(key, searched, writer, lines, first);
+                } else {
+                    if (!first) {
+                        writer.write(",");
+                    }
+                    PrettyJsonWriter.writeResultsEntry(key, searched, writer, 0);
+                }
+                first = false;
+            }
+            if (format == OutputFormat.PRETTY) {
+                writer.write(PrettyJsonWriter.newline);
+            }
+            CompactJsonWriter.endObject(writer, lines);
+        } finally {
+            searching.close();
+        }
+    }
+
+    /**
+     * Searches a batch of queries and completes their futures with the
+     * results. If the search fails, the futures complete exceptionally so
+     * nobody waiting on them is left hanging.
+     *
+     * @param queries     the queries to search
+     * @param futures     the future of each query
+     * @param exactSearch true for exact search, false to allow partial matches
+     */
+    private void search(List<TreeSet<String>> queries, List<CompletableFuture<List<SearchResult>>> futures,
+                        boolean exactSearch) {
+        try {
+            List<List<SearchResult>> searched = wordIndex.searchAll(queries, exactSearch);
+            for (int i = 0; i < futures.size(); i++) {
+                futures.get(i).complete(searched.get(i));
+            }
+        } catch (RuntimeException e) {
+            futures.forEach(future -> future.completeExceptionally(e));
+            throw e;
+        }
     }
 
     @Override
     public void parseQuery(String line, boolean exactSearch) {
-        workQueue.execute(new QueryTask(line, exactSearch));
+        TaskGroup group = new TaskGroup(workQueue);
+        group.execute(new QueryTask(List.of(line), exactSearch));
+        group.finish();
     }
 
     /**
@@ -73,13 +270,12 @@ public class ThreadSafeQueryFileHandler implements QueryFileHandlerInterface {
      */
     @Override
     public Set<String> getAllQueries() {
-        synchronized (results) {
-            return Collections.unmodifiableSet(results.keySet());
-        }
+        return Collections.unmodifiableSet(new TreeSet<>(results.keySet()));
     }
 
     /**
-     * Gets results of a given location
+     * Gets results of a given location, waiting for them if the query is
+     * still being searched
      *
      * @param queryLine the location to get SearchResults from
      * @return an unmodifiable list of SearchResults
@@ -88,9 +284,8 @@ public class ThreadSafeQueryFileHandler implements QueryFileHandlerInterface {
     public List<SearchResult> getResults(String queryLine) {
         TreeSet<String> stems = WordCleaner.uniqueStems(queryLine);
         String processedQuery = String.join(" ", stems);
-        synchronized (results) {
-            return results.getOrDefault(processedQuery, Collections.emptyList());
-        }
+        CompletableFuture<List<SearchResult>> searched = results.get(processedQuery);
+        return searched == null ? Collections.emptyList() : searched.join();
     }
 
 
@@ -102,20 +297,46 @@ public class ThreadSafeQueryFileHandler implements QueryFileHandlerInterface {
      */
     @Override
     public void resultsToJSON(Path output) throws IOException {
-        synchronized (results) {
-            PrettyJsonWriter.resultsToJSON(this.results, output);
+        PrettyJsonWriter.resultsToJSON(sortedResults(), output);
+    }
+
+    @Override
+    public void resultsToJSON(Writer writer, OutputFormat format) throws IOException {
+        TreeMap<String, List<SearchResult>> sorted = sortedResults();
+        switch (format) {
+            case PRETTY -> PrettyJsonWriter.resultsToJSON(sorted, writer, 0);
+            case MINIFIED -> CompactJsonWriter.resultsToJSON(sorted, writer, false);
+            case NDJSON -> CompactJsonWriter.resultsToJSON(sorted, writer, true);
+        }
+    }
+
+    /**
+     * Waits for every search and sorts the results by query. Queries whose
+     * search failed are left out.
+     *
+     * @return the queries mapped to their SearchResults, in order
+     */
+    private TreeMap<String, List<SearchResult>> sortedResults() {
+        TreeMap<String, List<SearchResult>> sorted = new TreeMap<>();
+        for (Map.Entry<String, CompletableFuture<List<SearchResult>>> entry : results.entrySet()) {
+            try {
+                sorted.put(entry.getKey(), entry.getValue().join());
+            } catch (CompletionException e) {
+                log.warn("Leaving out query {} that failed: {}", entry.getKey(), e.getCause());
+            }
         }
+        return sorted;
     }
 
     /**
-     * A runnable object that calls parseQuery
+     * A runnable object that searches a batch of query lines
      */
     private class QueryTask implements Runnable {
 
         /**
-         * The query line to process
+         * The query lines to process
          */
-        private final String line;
+        private final List<String> lines;
 
         /**
          * True for exact search, false if not
@@ -125,32 +346,72 @@ public class ThreadSafeQueryFileHandler implements QueryFileHandlerInterface {
         /**
          * Constructs a new instance of this class
          *
-         * @param line        The query line to process
+         * @param lines       The query lines to process
          * @param exactSearch True for exact search, false if not
          */
-        public QueryTask(String line, boolean exactSearch) {
-            this.line = line;
+        public QueryTask(List<String> lines, boolean exactSearch) {
+            this.lines = lines;
             this.exactSearch = exactSearch;
         }
 
         @Override
         public void run() {
             Stemmer stemmer = new SnowballStemmer(ENGLISH);
-            TreeSet<String> stems = WordCleaner.uniqueStems(line, stemmer);
-            if (stems.isEmpty()) {
-                return;
-            }
-            String key = String.join(" ", stems);
-            synchronized (results) {
-                if (results.containsKey(key)) {
-                    return;
+            List<TreeSet<String>> queries = new ArrayList<>();
+            List<CompletableFuture<List<SearchResult>>> claimed = new ArrayList<>();
+            Set<String> keys = new HashSet<>();
+            for (String line : lines) {
+                TreeSet<String> stems = WordCleaner.uniqueStems(line, stemmer);
+                String key = String.join(" ", stems);
+                if (stems.isEmpty() || !keys.add(key)) {
+                    continue;
+                }
+                CompletableFuture<List<SearchResult>> future = new CompletableFuture<>();
+                if (results.putIfAbsent(key, future) == null) {
+                    queries.add(stems);
+                    claimed.add(future);
                 }
             }
+            if (!queries.isEmpty()) {
+                search(queries, claimed, exactSearch);
+            }
+        }
+    }
+
+    /**
+     * A runnable object that stems a batch of query lines into a shared map
+     * of queries
+     */
+    private static class StemTask implements Runnable {
+        /**
+         * The query lines to stem
+         */
+        private final List<String> lines;
+
+        /**
+         * Each query mapped to its stems
+         */
+        private final Map<String, TreeSet<String>> queries;
 
-            List<SearchResult> searchResults = wordIndex.search(stems, exactSearch);
+        /**
+         * Constructs a new instance of this class
+         *
+         * @param lines   the query lines to stem
+         * @param queries each query mapped to its stems, must be thread safe
+         */
+        public StemTask(List<String> lines, Map<String, TreeSet<String>> queries) {
+            this.lines = lines;
+            this.queries = queries;
+        }
 
-            synchronized (results) {
-                results.put(key, searchResults);
+        @Override
+        public void run() {
+            Stemmer stemmer = new SnowballStemmer(ENGLISH);
+            for (String line : lines) {
+                TreeSet<String> stems = WordCleaner.uniqueStems(line, stemmer);
+                if (!stems.isEmpty()) {
+                    queries.putIfAbsent(String.join(" ", stems), stems);
+                }
             }
         }
     }
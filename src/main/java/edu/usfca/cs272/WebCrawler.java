@@ -1,12 +1,19 @@
 package edu.usfca.cs272;
 
 
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * Multithreaded web crawler that will recursively crawl on links found inside html
@@ -15,6 +22,11 @@ import java.util.Iterator;
  */
 public class WebCrawler {
 
+    /**
+     * Logger used for this class
+     */
+    private static final Logger log = LogManager.getLogger();
+
     /**
      * Lock object to allow for safe modification of maxUrls and crawledUrls.
      */
@@ -30,6 +42,26 @@ public class WebCrawler {
      */
     private final HashSet<URL> crawledUrls;
 
+    /**
+     * Counts the bytes transferred by every fetch of this crawl.
+     */
+    private final FetchContext fetchContext;
+
+    /**
+     * On-disk cache used for conditional requests, or null if recrawls always fetch in full.
+     */
+    private final HttpCache cache;
+
+    /**
+     * Persists the progress of the crawl so it can be resumed, or null if progress is not saved.
+     */
+    private final CrawlCheckpoint checkpoint;
+
+    /**
+     * Skips pages that are nearly the same as a page already crawled, or null if every page is indexed.
+     */
+    private final NearDuplicateDetector detector;
+
     /**
      * Creates a new instance of this class with a specified amount of URLs to crawl if
      * more are found from the seed url.
@@ -37,75 +69,309 @@ public class WebCrawler {
      * @param maxUrls the maximum amount of URLs to crawl before stopping.
      */
     public WebCrawler(int maxUrls) {
+        this(maxUrls, null);
+    }
+
+    /**
+     * Creates a new instance of this class with a specified amount of URLs to crawl that revalidates
+     * previously crawled pages using the provided cache.
+     *
+     * @param maxUrls the maximum amount of URLs to crawl before stopping.
+     * @param cache   the cache of previously crawled pages, or null to always fetch in full
+     */
+    public WebCrawler(int maxUrls, HttpCache cache) {
+        this(maxUrls, cache, null);
+    }
+
+    /**
+     * Creates a new instance of this class with a specified amount of URLs to crawl that revalidates
+     * previously crawled pages using the provided cache and saves its progress to the provided checkpoint.
+     *
+     * @param maxUrls    the maximum amount of URLs to crawl before stopping.
+     * @param cache      the cache of previously crawled pages, or null to always fetch in full
+     * @param checkpoint where to save the progress of the crawl, or null to not save progress
+     */
+    public WebCrawler(int maxUrls, HttpCache cache, CrawlCheckpoint checkpoint) {
+        this(maxUrls, cache, checkpoint, null, new FetchContext());
+    }
+
+    /**
+     * Creates a new instance of this class with a specified amount of URLs to crawl that revalidates
+     * previously crawled pages using the provided cache, saves its progress to the provided checkpoint,
+     * skips near-duplicate pages using the provided detector and bounds every fetch by the limits of the
+     * provided context.
+     *
+     * @param maxUrls    the maximum amount of URLs to crawl before stopping.
+     * @param cache      the cache of previously crawled pages, or null to always fetch in full
+     * @param checkpoint where to save the progress of the crawl, or null to not save progress
+     * @param detector   the detector of near-duplicate pages, or null to index every page
+     * @param context    the limits used for every fetch, which also collects the transfer counters
+     */
+    public WebCrawler(int maxUrls, HttpCache cache, CrawlCheckpoint checkpoint, NearDuplicateDetector detector,
+                      FetchContext context) {
         this.urlLock = new Object();
         this.maxUrls = maxUrls;
         this.crawledUrls = new HashSet<>();
+        this.fetchContext = context;
+        this.cache = cache;
+        this.checkpoint = checkpoint;
+        this.detector = detector;
+    }
+
+    /**
+     * Gets the fetch context of this crawl
+     *
+     * @return the {@link FetchContext} holding the transfer counters of this crawl
+     */
+    public FetchContext getFetchContext() {
+        return fetchContext;
     }
 
     /**
      * Starts a recursive web crawl using Sockets to download the page. Follows up to 3 redirects and up to
-     * a specified amount of links found inside href tags.
+     * a specified amount of links found inside href tags. If a checkpoint is used, any progress saved
+     * by an earlier crawl is discarded.
      *
      * @param seed      the url to crawl, any links found inside will be crawled
      * @param index     the {@link ThreadSafeInvertedWordIndex} to add data to
      * @param workQueue A {@link WorkQueue} to distribute work to threads.
      * @throws MalformedURLException if the seed url is invalid
+     * @throws IOException           if unable to start a new checkpoint
      */
-    public void startCrawl(String seed, ThreadSafeInvertedWordIndex index, WorkQueue workQueue) throws MalformedURLException {
+    public void startCrawl(String seed, ThreadSafeInvertedWordIndex index, WorkQueue workQueue) throws IOException {
         URL seedUrl = new URL(seed);
         try { // todo: maybe unnecessary
             LinkFinder.normalize(seedUrl);
         } catch (URISyntaxException e) {
             throw new RuntimeException(e);
         }
+        if (checkpoint != null) {
+            checkpoint.reset(index);
+            checkpoint.queued(seedUrl);
+        }
         synchronized (urlLock) {
             crawledUrls.add(seedUrl);
         }
-        crawl(seedUrl, index, workQueue);
-        workQueue.finish();
+        TaskGroup group = new TaskGroup(workQueue);
+        crawl(seedUrl, index, group);
+        finishCrawl(seed, group);
+    }
+
+    /**
+     * Continues the crawl saved in the checkpoint. The words of every finished page are added back to
+     * the index and, if a near-duplicate detector is used, registered with it by their saved
+     * fingerprints, so new pages that duplicate them are still skipped. Every page that was queued but
+     * not finished is crawled again. The remaining budget is the maximum amount of URLs minus the URLs
+     * already queued. If there is no checkpoint or it has no saved progress, a new crawl is started from
+     * the seed instead.
+     *
+     * @param seed      the url to crawl if there is no saved progress
+     * @param index     the {@link ThreadSafeInvertedWordIndex} to add data to
+     * @param workQueue A {@link WorkQueue} to distribute work to threads.
+     * @throws MalformedURLException if the seed url is invalid
+     * @throws IOException           if unable to read the checkpoint
+     */
+    public void resumeCrawl(String seed, ThreadSafeInvertedWordIndex index, WorkQueue workQueue) throws IOException {
+        if (checkpoint == null) {
+            startCrawl(seed, index, workQueue);
+            return;
+        }
+        List<URL> frontier = checkpoint.restore(index, detector);
+        Set<String> seen = checkpoint.getSeen();
+        if (seen.isEmpty()) {
+            startCrawl(seed, index, workQueue);
+            return;
+        }
+
+        synchronized (urlLock) {
+            for (String location : seen) {
+                crawledUrls.add(new URL(location));
+            }
+            maxUrls -= seen.size() - 1;
+        }
+        log.info("Resuming crawl with {} of {} queued pages left", frontier.size(), seen.size());
+        TaskGroup group = new TaskGroup(workQueue);
+        for (URL url : frontier) {
+            group.execute(new CrawlTask(url, index, group, this));
+        }
+        finishCrawl(seed, group);
     }
 
     /**
-     * Uses Sockets to download a webpage if it's content type is text/html. After stripping block elements, it
-     * looks for links inside href tags. We create a new {@link CrawlTask} if the link is: it's a valid URL,
+     * Waits for every crawl task to finish and saves the final state of the checkpoint, if any.
+     *
+     * @param seed      the url the crawl started from
+     * @param group     the {@link TaskGroup} of the crawl tasks
+     * @throws IOException if unable to save the checkpoint
+     */
+    private void finishCrawl(String seed, TaskGroup group) throws IOException {
+        group.finish();
+        if (checkpoint != null) {
+            checkpoint.close();
+        }
+        log.info("Crawl of {} finished: {}", seed, fetchContext);
+        if (detector != null) {
+            log.info("Near-duplicates in crawl of {}: {}", seed, detector);
+        }
+    }
+
+    /**
+     * Uses Sockets to download a webpage if it's content type is text/html. While cleaning the html in a single
+     * pass, it looks for links inside href tags. We create a new {@link CrawlTask} if the link is: it's a valid URL,
      * it hasn't already been crawled,
      * and we haven't reached our maxUrls crawled.
+     * <p>
+     * If a cache is used, a page that was crawled before is requested conditionally. When the server answers
+     * 304 (not modified), the cached text and links are reused without cleaning, and the page is not indexed
+     * again if the index already has it.
+     * <p>
+     * The words of the page are collected in a separate index and added to the crawl index all at once, so
+     * the crawl index is locked, and its write-ahead log written, once per page rather than once per word.
+     * If a checkpoint is used, the checkpoint adds them when it records the page as finished.
+     * <p>
+     * If a near-duplicate detector is used, a page nearly the same as one already indexed is not indexed,
+     * but its links are still followed. A cached page that is already indexed is registered with the
+     * detector without being checked.
      *
      * @param url       the url to crawl
      * @param index     the index to add data to
-     * @param workQueue a {@link WorkQueue} to handle the execution of {@link CrawlTask}
+     * @param group     the {@link TaskGroup} to add more {@link CrawlTask} to
      */
-    private void crawl(URL url, ThreadSafeInvertedWordIndex index, WorkQueue workQueue) {
-        String html = HtmlFetcher.fetch(url, 3);
-        if (html == null) {
-            return; // unable to find resource or is not html
+    private void crawl(URL url, ThreadSafeInvertedWordIndex index, TaskGroup group) {
+        HttpCache.Entry cached = cache == null ? null : cache.get(url);
+        Map<String, String> validators = cached == null ? Map.of() : cached.getValidators();
+        HtmlFetcher.Response response = HtmlFetcher.fetchResponse(url, 3, validators, fetchContext);
+        if (response == null) {
+            finished(url, null, index); // unable to find resource or is not html
+            return;
         }
-        html = HtmlCleaner.stripBlockElements(html);
 
-        // Find links
+        String location = url.toString();
         ArrayList<URL> urls = new ArrayList<>();
-        LinkFinder.findUrls(url, html, urls); //todo: could save some time by only finding enough urls to satisfy maxURLs
+        String text;
+        boolean indexed = false;
+        if (response.isNotModified()) {
+            if (cached == null) {
+                finished(url, null, index); // not something we asked to revalidate
+                return;
+            }
+            fetchContext.recordNotModified();
+            text = cached.getText();
+            for (String link : cached.getLinks()) {
+                LinkFinder.addUrl(url, link, urls);
+            }
+            indexed = index.getCount(location) > 0;
+        } else if (response.getHtml() != null) {
+            // Clean html and find links in one pass
+            text = HtmlScanner.scan(response.getHtml(), url, urls);
+            if (cache != null) {
+                storeCached(url, response, text, urls);
+            }
+        } else {
+            finished(url, null, index);
+            return;
+        }
+
         ArrayList<CrawlTask> crawlTasks = new ArrayList<>();
         synchronized (urlLock) {
             Iterator<URL> urlsIterator = urls.iterator();
             while (urlsIterator.hasNext() && this.maxUrls > 1) {
                 URL foundURL = urlsIterator.next();
                 if (!crawledUrls.contains(foundURL)) {
-                    crawlTasks.add(new CrawlTask(foundURL, index, workQueue, this));
+                    crawlTasks.add(new CrawlTask(foundURL, index, group, this));
                     crawledUrls.add(foundURL);
                     maxUrls--;
                 }
             }
         }
         for (CrawlTask crawlTask : crawlTasks) {
-            workQueue.execute(crawlTask);
+            if (checkpoint != null) {
+                checkpoint.queued(crawlTask.url);
+            }
+            // resolve new hosts ahead of the task that fetches from them
+            fetchContext.getResolver().prefetch(crawlTask.url.getHost(), group);
+            group.execute(crawlTask);
         }
 
-        // Continue processing HTML from current link
-        html = HtmlCleaner.stripTags(html);
-        html = HtmlCleaner.stripEntities(html);
+        String[] words = WordCleaner.parse(text);
+        if (indexed) {
+            Long fingerprint = null;
+            if (detector != null) {
+                detector.register(location, words); // so later near-copies of the cached page are still found
+                fingerprint = detector.getFingerprint(location);
+            }
+            finished(url, null, fingerprint, index);
+            return;
+        }
 
-        WordIndexBuilder.scanText(html, url.toString(), index);
+        if (detector != null) {
+            String original = detector.findDuplicate(location, words);
+            if (original != null) {
+                log.debug("Skipping {}, a near-duplicate of {}", location, original);
+                finished(url, null, index);
+                return;
+            }
+        }
+
+        long start = System.nanoTime();
+        InvertedWordIndex page = new InvertedWordIndex();
+        WordIndexBuilder.scanWords(words, location, page);
+        finished(url, page, detector == null ? null : detector.getFingerprint(location), index);
+        if (detector != null) {
+            detector.recordIndexed(words.length, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Adds the words of a finished page to the index. If a checkpoint is used, the page is recorded as
+     * finished even if it had no words, so it is not crawled again when the crawl is resumed.
+     *
+     * @param url   the url of the page
+     * @param page  the words found on the page, or null if there are none to add
+     * @param index the index to add the words to
+     */
+    private void finished(URL url, InvertedWordIndex page, ThreadSafeInvertedWordIndex index) {
+        finished(url, page, null, index);
+    }
+
+    /**
+     * Adds the words of a finished page to the index. If a checkpoint is used, the page is recorded as
+     * finished along with its near-duplicate fingerprint, if any, so the fingerprint can be registered
+     * again when the crawl is resumed.
+     *
+     * @param url         the url of the page
+     * @param page        the words found on the page, or null if there are none to add
+     * @param fingerprint the fingerprint the page was registered with, or null
+     * @param index       the index to add the words to
+     */
+    private void finished(URL url, InvertedWordIndex page, Long fingerprint, ThreadSafeInvertedWordIndex index) {
+        if (checkpoint != null) {
+            checkpoint.done(url, page, fingerprint);
+        } else if (page != null) {
+            index.addAll(page);
+        }
+    }
+
+    /**
+     * Stores the cleaned text and links of a page in the cache if the response has validators to
+     * revalidate it with later.
+     *
+     * @param url      the url of the page
+     * @param response the response the page came from
+     * @param text     the cleaned text of the page
+     * @param urls     the links found on the page
+     */
+    private void storeCached(URL url, HtmlFetcher.Response response, String text, List<URL> urls) {
+        HttpCache.Entry entry = new HttpCache.Entry(response.getHeader("ETag"), response.getHeader("Last-Modified"),
+                text, urls.stream().map(URL::toString).toList());
+        if (!entry.hasValidators()) {
+            return;
+        }
+        try {
+            cache.put(url, entry);
+        } catch (IOException e) {
+            log.warn("Unable to cache {}: {}", url, e.getMessage());
+        }
     }
 
 
@@ -125,9 +391,9 @@ public class WebCrawler {
         private final ThreadSafeInvertedWordIndex index;
 
         /**
-         * The workQueue to add more CrawlTasks to
+         * The group of the crawl to add more CrawlTasks to
          */
-        private final WorkQueue workQueue;
+        private final TaskGroup group;
 
         /**
          * A webcrawler that holds the maxUrls and crawledUrls
@@ -138,20 +404,20 @@ public class WebCrawler {
          * Constructs a new CrawlTask
          *
          * @param url       The url to crawl
-         * @param index     The workQueue to add more CrawlTasks to
-         * @param workQueue The workQueue to add more CrawlTasks to
+         * @param index     The index to add data to
+         * @param group     The group of the crawl to add more CrawlTasks to
          * @param crawler   A webcrawler that holds the maxUrls and crawledUrls
          */
-        public CrawlTask(URL url, ThreadSafeInvertedWordIndex index, WorkQueue workQueue, WebCrawler crawler) {
+        public CrawlTask(URL url, ThreadSafeInvertedWordIndex index, TaskGroup group, WebCrawler crawler) {
             this.url = url;
             this.index = index;
-            this.workQueue = workQueue;
+            this.group = group;
             this.crawler = crawler;
         }
 
         @Override
         public void run() {
-            crawler.crawl(url, index, workQueue);
+            crawler.crawl(url, index, group);
         }
     }
 }
@@ -8,6 +8,9 @@ import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 import static java.nio.charset.StandardCharsets.UTF_8;
 import static opennlp.tools.stemmer.snowball.SnowballStemmer.ALGORITHM.ENGLISH;
@@ -41,12 +44,37 @@ public class WordIndexBuilder {
      * @throws IOException if listStems throws an IOException while parsing
      */
     public static void build(Path start, ThreadSafeInvertedWordIndex index, WorkQueue workQueue) throws IOException {
-        ArrayList<Path> files = TextFileTraverser.scanDirectory(start);
-        for (Path file : files) {
-            workQueue.execute(new ScannerTask(file, index));
-        }
-        workQueue.finish();
+        buildAsync(start, index, workQueue).join();
+    }
 
+    /**
+     * Multithreaded implementation that does not wait for the build to finish.
+     * Only waits for the tasks of this build, so other work can share the same
+     * work queue. Files are submitted as they are found.
+     *
+     * @param start     file or directory containing the words
+     * @param index     a {@link InvertedWordIndex} to store the words.
+     * @param workQueue a workQueue to execute ScannerTasks
+     * @return a future completed once every file has been added to the index
+     * @throws IOException if unable to list the files to scan
+     * @see TaskGroup
+     */
+    public static CompletableFuture<Void> buildAsync(Path start, ThreadSafeInvertedWordIndex index,
+                                                     WorkQueue workQueue) throws IOException {
+        TaskGroup group = new TaskGroup(workQueue);
+        // submit while traversing so a bounded work queue can slow the traversal down
+        try {
+            TextFileTraverser.traverse(start, file -> group.execute(new ScannerTask(file, index)));
+        } catch (IOException | RuntimeException e) {
+            // wait for the files already submitted, so nothing writes to the index after this throws
+            try {
+                group.close().join();
+            } catch (CompletionException | CancellationException failed) {
+                e.addSuppressed(failed);
+            }
+            throw e;
+        }
+        return group.close();
     }
 
     /**
@@ -80,9 +108,18 @@ public class WordIndexBuilder {
      * @param index    a {@link InvertedWordIndex} to store the words.
      */
     public static void scanText(String text, String location, InvertedWordIndex index) {
+        scanWords(WordCleaner.parse(text), location, index);
+    }
+
+    /**
+     * Stems already parsed words and puts them into an InvertedWordIndex
+     *
+     * @param parsedLine the words returned by {@link WordCleaner#parse(String)}
+     * @param location   where these words were found
+     * @param index      a {@link InvertedWordIndex} to store the words.
+     */
+    public static void scanWords(String[] parsedLine, String location, InvertedWordIndex index) {
         SnowballStemmer stemmer = new SnowballStemmer(ENGLISH);
-        String[] parsedLine;
-        parsedLine = WordCleaner.parse(text);
         int position = 1;
         for (String word : parsedLine) {
             index.add(stemmer.stem(word).toString(), location, position++);
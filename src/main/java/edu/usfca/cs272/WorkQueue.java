@@ -4,12 +4,49 @@ import org.apache.logging.log4j.Level;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
-import java.util.LinkedList;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * A simple work queue implementation based on the IBM developerWorks article by
  * Brian Goetz. It is up to the user of this class to keep track of whether
  * there is any pending work remaining.
+ * <p>
+ * Every worker has its own deque of tasks. Tasks submitted by a worker (for
+ * example, a crawl task that finds more links) are pushed onto that worker's
+ * deque and popped last-in first-out, which keeps related work on one thread.
+ * Tasks submitted by any other thread go into a shared submission queue. A
+ * worker with no local work takes from the submission queue and then steals
+ * the oldest task of another worker, starting from a random victim. Idle
+ * workers sleep and are woken one at a time as work arrives.
+ * <p>
+ * By default the queue is unbounded. A bounded queue holds at most a fixed
+ * number of waiting tasks; when it is full, {@link #execute(Runnable)} either
+ * blocks the producer until a worker takes a task or runs the task in the
+ * producer's own thread, depending on the {@link Overflow} policy. Workers that
+ * submit to a full queue always run the task themselves, since a blocked worker
+ * could wait forever on work only it would run.
+ * <p>
+ * An adaptive queue grows and shrinks its workers between a minimum and a
+ * maximum. Every {@link #ADAPT_INTERVAL} milliseconds a monitor thread
+ * compares the CPU time of the workers with the time they spent running tasks.
+ * Tasks that mostly wait on I/O, such as fetching pages, call for many
+ * workers; tasks that mostly compute, such as parsing files, call for about
+ * one per processor. Workers are added while tasks are waiting and fewer
+ * workers than that are running, and are retired one at a time while the
+ * queue is mostly idle or has more workers than it needs.
+ * <p>
+ * The queue keeps {@link Stats} on how long tasks wait before they run, how
+ * long they run and how much of their time the workers spend busy.
  *
  * @author CS 272 Software Development (University of San Francisco)
  * @version Fall 2022
@@ -17,16 +54,63 @@ import java.util.LinkedList;
  * "https://web.archive.org/web/20210126172022/https://www.ibm.com/developerworks/library/j-jtp0730/index.html">
  * Java Theory and Practice: Thread Pools and Work Queues</a>
  */
-public class WorkQueue {
+public class WorkQueue implements Executor {
     /**
-     * Workers that wait until work (or tasks) are available.
+     * What {@link #execute(Runnable)} does when a bounded queue is full.
      */
-    private final Worker[] workers;
+    public enum Overflow {
+        /**
+         * Wait until a worker takes a task from the queue
+         */
+        BLOCK,
+
+        /**
+         * Run the task in the thread that submitted it
+         */
+        CALLER_RUNS
+    }
+
+    /**
+     * Workers that wait until work (or tasks) are available. Replaced with a
+     * new array whenever a worker is added or retired.
+     */
+    private volatile Worker[] workers;
+
+    /**
+     * Lock held while replacing the array of workers
+     */
+    private final Object workersLock;
+
+    /**
+     * The fewest workers an adaptive queue shrinks to
+     */
+    private final int minWorkers;
+
+    /**
+     * The most workers an adaptive queue grows to
+     */
+    private final int maxWorkers;
+
+    /**
+     * Number of workers asked to retire that have not retired yet
+     */
+    private final AtomicInteger retiring;
+
+    /**
+     * Resizes the workers of an adaptive queue, or null if the number of
+     * workers is fixed
+     */
+    private final Monitor monitor;
+
+    /**
+     * Milliseconds between two sizing decisions of an adaptive queue
+     */
+    public static final long ADAPT_INTERVAL = 250;
 
     /**
-     * Queue of pending work (or tasks).
+     * Queue of work (or tasks) submitted by threads that are not workers.
      */
-    private final LinkedList<Runnable> tasks;
+    private final ConcurrentLinkedQueue<Task> submissions;
 
     /**
      * Used to signal the workers should terminate.
@@ -38,6 +122,11 @@ public class WorkQueue {
      */
     public static final int DEFAULT = 5;
 
+    /**
+     * The default most number of worker threads an adaptive queue grows to.
+     */
+    public static final int DEFAULT_MAX = 64;
+
     /**
      * Logger used for this class.
      */
@@ -46,13 +135,81 @@ public class WorkQueue {
     /**
      * Tracks how much work is still being processed (aka tasks still in run method)
      */
-    private int pending;
+    private final AtomicInteger pending;
 
     /**
-     * Lock for the pending variable
+     * Lock used to wait for the pending work to reach zero
      */
     private final Object pendingLock;
 
+    /**
+     * Lock idle workers wait on until there is work to do
+     */
+    private final Object idleLock;
+
+    /**
+     * Number of workers waiting on the idle lock. Only changed while holding the
+     * idle lock, but read without it so submitting work does not take the lock
+     * when every worker is busy.
+     */
+    private volatile int idleWorkers;
+
+    /**
+     * The maximum number of tasks waiting to run
+     */
+    private final int capacity;
+
+    /**
+     * What to do when a producer submits to a full queue
+     */
+    private final Overflow overflow;
+
+    /**
+     * Number of tasks waiting to run
+     */
+    private final AtomicInteger queued;
+
+    /**
+     * The largest number of tasks that were waiting to run at once
+     */
+    private final AtomicInteger highWaterMark;
+
+    /**
+     * Number of tasks run by the thread that submitted them because the queue was full
+     */
+    private final AtomicInteger callerRuns;
+
+    /**
+     * Lock producers wait on until a full queue has space
+     */
+    private final Object spaceLock;
+
+    /**
+     * Number of producers waiting on the space lock. Only changed while holding
+     * the space lock.
+     */
+    private volatile int blockedProducers;
+
+    /**
+     * Time from submitting a task to a worker taking it
+     */
+    private final LatencyHistogram queueLatency;
+
+    /**
+     * Time spent running each task, including tasks run by their producer
+     */
+    private final LatencyHistogram runTime;
+
+    /**
+     * Time workers spent running tasks, in nanoseconds
+     */
+    private final LongAdder busyNanos;
+
+    /**
+     * Time workers spent waiting for tasks, in nanoseconds
+     */
+    private final LongAdder idleNanos;
+
 
     /**
      * Starts a work queue with the default number of threads.
@@ -69,16 +226,73 @@ public class WorkQueue {
      * @param threads number of worker threads; should be greater than 1
      */
     public WorkQueue(int threads) {
-        this.tasks = new LinkedList<>();
+        this(threads, Integer.MAX_VALUE, Overflow.BLOCK);
+    }
+
+    /**
+     * Starts a work queue with the specified number of threads that holds at
+     * most the specified number of waiting tasks.
+     *
+     * @param threads  number of worker threads; should be greater than 1
+     * @param capacity the maximum number of tasks waiting to run
+     * @param overflow what producers that are not workers do when the queue is full
+     */
+    public WorkQueue(int threads, int capacity, Overflow overflow) {
+        this(threads, threads, threads, capacity, overflow);
+    }
+
+    /**
+     * Starts a work queue that holds at most the specified number of waiting
+     * tasks. If the minimum and maximum number of workers differ, the queue is
+     * adaptive and resizes itself between them.
+     *
+     * @param threads    number of worker threads to start with
+     * @param minThreads the fewest worker threads to shrink to; at least 1
+     * @param maxThreads the most worker threads to grow to
+     * @param capacity   the maximum number of tasks waiting to run
+     * @param overflow   what producers that are not workers do when the queue is full
+     */
+    public WorkQueue(int threads, int minThreads, int maxThreads, int capacity, Overflow overflow) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+        if (minThreads < 1 || maxThreads < minThreads) {
+            throw new IllegalArgumentException("Invalid worker bounds " + minThreads + " to " + maxThreads);
+        }
+        threads = Math.max(minThreads, Math.min(maxThreads, threads));
+        this.minWorkers = minThreads;
+        this.maxWorkers = maxThreads;
+        this.workersLock = new Object();
+        this.retiring = new AtomicInteger();
+        this.capacity = capacity;
+        this.overflow = overflow;
+        this.queued = new AtomicInteger();
+        this.highWaterMark = new AtomicInteger();
+        this.callerRuns = new AtomicInteger();
+        this.spaceLock = new Object();
+        this.blockedProducers = 0;
+        this.submissions = new ConcurrentLinkedQueue<>();
         this.workers = new Worker[threads];
+        this.monitor = minThreads < maxThreads ? new Monitor() : null;
         this.shutdown = false;
-        this.pending = 0;
+        this.pending = new AtomicInteger();
         this.pendingLock = new Object();
+        this.idleLock = new Object();
+        this.idleWorkers = 0;
+        this.queueLatency = new LatencyHistogram();
+        this.runTime = new LatencyHistogram();
+        this.busyNanos = new LongAdder();
+        this.idleNanos = new LongAdder();
 
-        // start the threads so they are waiting in the background
+        // create every worker before starting any so they can steal from each other
         for (int i = 0; i < threads; i++) {
             workers[i] = new Worker();
-            workers[i].start();
+        }
+        for (Worker worker : workers) {
+            worker.start();
+        }
+        if (monitor != null) {
+            monitor.start();
         }
 
         log.debug("Work queue initialized with {} worker threads.", workers.length);
@@ -87,19 +301,114 @@ public class WorkQueue {
 
     /**
      * Adds a work (or task) request to the queue. A worker thread will process
-     * this request when available.
+     * this request when available. Work submitted from one of this queue's
+     * workers goes to the front of that worker's own deque.
+     * <p>
+     * If the queue is full, a worker runs the task right away, and any other
+     * thread blocks or runs the task right away depending on the
+     * {@link Overflow} policy.
      *
      * @param task work request (in the form of a {@link Runnable} object)
      */
     public void execute(Runnable task) {
-        synchronized (pendingLock) {
-            pending++;
+        Worker worker = Thread.currentThread() instanceof Worker current && current.getQueue() == this
+                ? current : null;
+        if (!reserve()) {
+            if (worker != null || overflow == Overflow.CALLER_RUNS) {
+                callerRuns.incrementAndGet();
+                long start = System.nanoTime();
+                runTask(task);
+                runTime.record(System.nanoTime() - start);
+                return;
+            }
+            awaitSpace();
+        }
+
+        pending.incrementAndGet();
+        if (worker != null) {
+            worker.deque.addLast(new Task(task));
+        } else {
+            submissions.add(new Task(task));
+        }
+        if (idleWorkers > 0) {
+            synchronized (idleLock) {
+                idleLock.notify();
+            }
+        }
+    }
+
+    /**
+     * Takes one of the free spaces of the queue, if there is one, and updates
+     * the high water mark.
+     *
+     * @return true if a space was taken, false if the queue is full
+     */
+    private boolean reserve() {
+        int count;
+        do {
+            count = queued.get();
+            if (count >= capacity) {
+                return false;
+            }
+        } while (!queued.compareAndSet(count, count + 1));
+        highWaterMark.accumulateAndGet(count + 1, Math::max);
+        return true;
+    }
+
+    /**
+     * Blocks until a space of the queue is taken. Stops waiting if the queue is
+     * shut down or the thread is interrupted, in which case the task goes over
+     * the capacity.
+     */
+    private void awaitSpace() {
+        boolean reserved = false;
+        synchronized (spaceLock) {
+            blockedProducers++;
+            try {
+                while (!shutdown && !(reserved = reserve())) {
+                    spaceLock.wait();
+                }
+            } catch (InterruptedException e) {
+                System.err.println("Warning: Work queue interrupted while waiting for space.");
+                log.catching(Level.DEBUG, e);
+                Thread.currentThread().interrupt();
+            } finally {
+                blockedProducers--;
+                if (!reserved) {
+                    queued.incrementAndGet(); // the task is queued anyway, over capacity
+                }
+            }
         }
-        synchronized (tasks) {
-            tasks.addLast(task);
-            tasks.notifyAll();
+    }
+
+    /**
+     * Marks a task as taken off the queue by a worker, waking a blocked
+     * producer if there is one.
+     */
+    private void taken() {
+        queued.decrementAndGet();
+        if (blockedProducers > 0) {
+            synchronized (spaceLock) {
+                spaceLock.notify();
+            }
         }
+    }
 
+    /**
+     * Runs a task, catching runtime exceptions so they do not escape into the
+     * thread running it.
+     *
+     * @param task the task to run
+     */
+    private void runTask(Runnable task) {
+        try {
+            task.run();
+        } catch (RuntimeException e) {
+            // catch runtime exceptions to avoid leaking threads
+            System.err.printf("Warning: %s encountered an exception while running.%s%n",
+                    Thread.currentThread().getName(), e);
+            log.catching(Level.DEBUG, e);
+        }
     }
 
     /**
@@ -109,9 +418,9 @@ public class WorkQueue {
     public void finish() {
         try {
             synchronized (pendingLock) {
-                while (pending != 0) {
-                    log.debug("Waiting to finish. Tasks: {} | Pending: {}", tasks.size(), pending);
-                    pendingLock.wait(); // question: how does anything modify pending while this thread is waiting with the lock?
+                while (pending.get() != 0) {
+                    log.debug("Waiting to finish. Pending: {}", pending);
+                    pendingLock.wait();
                 }
                 log.debug("Work finished!");
             }
@@ -131,11 +440,15 @@ public class WorkQueue {
         try {
             finish();
             shutdown();
+            if (monitor != null) {
+                monitor.join();
+            }
             for (Worker worker : workers) {
                 worker.join();
             }
 
-            log.debug("All worker threads terminated.");
+            log.debug("All worker threads terminated. Queue depth high water mark: {} of {}, caller runs: {}",
+                    getHighWaterMark(), capacity, getCallerRuns());
         } catch (InterruptedException e) {
             System.err.println("Warning: Work queue interrupted while joining.");
             log.catching(Level.DEBUG, e);
@@ -152,8 +465,14 @@ public class WorkQueue {
         shutdown = true;
 
         log.debug("Work queue triggering shutdown...");
-        synchronized (tasks) {
-            tasks.notifyAll();
+        if (monitor != null) {
+            monitor.interrupt();
+        }
+        synchronized (idleLock) {
+            idleLock.notifyAll();
+        }
+        synchronized (spaceLock) {
+            spaceLock.notifyAll();
         }
     }
 
@@ -166,35 +485,158 @@ public class WorkQueue {
         return workers.length;
     }
 
+    /**
+     * @return true if the queue resizes its workers
+     */
+    public boolean isAdaptive() {
+        return monitor != null;
+    }
+
+    /**
+     * @return the fewest worker threads an adaptive queue shrinks to
+     */
+    public int getMinWorkers() {
+        return minWorkers;
+    }
+
+    /**
+     * @return the most worker threads an adaptive queue grows to
+     */
+    public int getMaxWorkers() {
+        return maxWorkers;
+    }
+
     /**
      * Returns the amount of pending work
      *
      * @return the amount of pending work
      */
     public int getPending() {
-        int gotPending;
-        synchronized (pendingLock) {
-            gotPending = this.pending;
-        }
-        return gotPending;
+        return pending.get();
+    }
+
+    /**
+     * Returns the maximum number of tasks waiting to run
+     *
+     * @return the capacity, or {@link Integer#MAX_VALUE} if the queue is unbounded
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Returns the largest number of tasks that were waiting to run at once
+     *
+     * @return the queue depth high water mark
+     */
+    public int getHighWaterMark() {
+        return highWaterMark.get();
+    }
+
+    /**
+     * Returns the number of tasks run by the thread that submitted them because
+     * the queue was full
+     *
+     * @return the number of caller runs
+     */
+    public int getCallerRuns() {
+        return callerRuns.get();
+    }
+
+    /**
+     * Returns the queue latency, run time and worker utilization statistics of
+     * this queue.
+     *
+     * @return a read-only view of the statistics
+     */
+    public Stats getStats() {
+        return new Stats();
     }
 
     /**
      * Returns the amount of remaining tasks
      *
-     * @return the amount of pending tasks
+     * @return the amount of tasks waiting to run
      */
     public int getTaskSize() {
-        int taskSize;
-        synchronized (tasks) {
-            taskSize = tasks.size();
+        return queued.get();
+    }
+
+    /**
+     * Determines whether any task is waiting to run.
+     *
+     * @return true if the submission queue or any worker deque is not empty
+     */
+    private boolean hasTasks() {
+        if (!submissions.isEmpty()) {
+            return true;
+        }
+        for (Worker worker : workers) {
+            if (!worker.deque.isEmpty()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Starts new workers.
+     *
+     * @param count the number of workers to add
+     */
+    private void addWorkers(int count) {
+        synchronized (workersLock) {
+            if (shutdown) {
+                return;
+            }
+            Worker[] current = workers;
+            Worker[] grown = Arrays.copyOf(current, current.length + count);
+            for (int i = current.length; i < grown.length; i++) {
+                grown[i] = new Worker();
+            }
+            workers = grown;
+            for (int i = current.length; i < grown.length; i++) {
+                grown[i].start();
+            }
+        }
+    }
+
+    /**
+     * Removes a worker that is retiring from the array of workers.
+     *
+     * @param worker the retiring worker
+     */
+    private void removeWorker(Worker worker) {
+        synchronized (workersLock) {
+            Worker[] current = workers;
+            Worker[] shrunk = new Worker[current.length - 1];
+            int i = 0;
+            for (Worker other : current) {
+                if (other != worker) {
+                    shrunk[i++] = other;
+                }
+            }
+            workers = shrunk;
+        }
+    }
+
+    /**
+     * Marks one task as done, waking threads waiting in {@link #finish()} if it
+     * was the last one.
+     */
+    private void taskDone() {
+        if (pending.decrementAndGet() == 0) {
+            synchronized (pendingLock) {
+                pendingLock.notifyAll();
+            }
         }
-        return taskSize;
     }
 
     /**
      * Waits until work (or a task) is available in the work queue. When work is
-     * found, will remove the work from the queue and run it.
+     * found, will remove the work from the queue and run it. Work is taken from
+     * the worker's own deque first, then from the submission queue, and finally
+     * stolen from another worker.
      *
      * <p>
      * If a shutdown is detected, will exit instead of grabbing new work from the
@@ -202,53 +644,108 @@ public class WorkQueue {
      * shutdown is requested.
      */
     private class Worker extends Thread {
+        /**
+         * Tasks submitted by this worker. The owner pushes and pops at the end,
+         * thieves take from the start.
+         */
+        private final ConcurrentLinkedDeque<Task> deque;
+
+        /**
+         * Time this worker spent running tasks, in nanoseconds. Only written by
+         * this worker.
+         */
+        private volatile long busy;
+
         /**
          * Initializes a worker thread with a custom name.
          */
         public Worker() {
             setName("Worker" + getName());
+            this.deque = new ConcurrentLinkedDeque<>();
+        }
+
+        /**
+         * @return the work queue this worker belongs to
+         */
+        private WorkQueue getQueue() {
+            return WorkQueue.this;
+        }
+
+        /**
+         * Finds the next task to run without waiting.
+         *
+         * @return the next task or null if there is none
+         */
+        private Task poll() {
+            Task task = deque.pollLast();
+            if (task == null) {
+                task = submissions.poll();
+            }
+            if (task == null) {
+                task = steal();
+            }
+            return task;
+        }
+
+        /**
+         * Takes the oldest task of another worker, trying every other worker
+         * once starting from a random one.
+         *
+         * @return the stolen task or null if there was nothing to steal
+         */
+        private Task steal() {
+            Worker[] victims = workers;
+            int start = ThreadLocalRandom.current().nextInt(victims.length);
+            for (int i = 0; i < victims.length; i++) {
+                Worker victim = victims[(start + i) % victims.length];
+                if (victim != this) {
+                    Task task = victim.deque.pollFirst();
+                    if (task != null) {
+                        return task;
+                    }
+                }
+            }
+            return null;
         }
 
         @Override
         public void run() {
-            Runnable task;
+            Task task;
 
             try {
-                while (true) {
-                    synchronized (tasks) {
-                        while (tasks.isEmpty() && !shutdown) {
-                            log.debug("Work queue worker waiting...");
-                            tasks.wait();
-                        }
-
-                        // exit while for one of two reasons:
-                        // (a) queue has work, or (b) shutdown has been called
-
-                        if (shutdown) {
-                            log.debug("Worker detected shutdown...");
-                            break;
-                        } else {
-                            log.debug("Worker found {} tasks...", tasks.size());
-                            task = tasks.removeFirst();
+                while (!shutdown && !retire()) {
+                    task = poll();
+                    if (task == null) {
+                        long idle = System.nanoTime();
+                        synchronized (idleLock) {
+                            idleWorkers++;
+                            try {
+                                // check again after registering as idle so a submission cannot be missed
+                                while (!shutdown && !hasTasks() && retiring.get() == 0) {
+                                    idleLock.wait();
+                                }
+                            } finally {
+                                idleWorkers--;
+                            }
                         }
+                        idleNanos.add(System.nanoTime() - idle);
+                        continue;
                     }
 
+                    taken();
+                    long start = System.nanoTime();
+                    queueLatency.record(start - task.submitted);
                     try {
-                        log.trace("Work queue worker running work.");
-                        task.run();
-                    } catch (RuntimeException e) {
-                        // catch runtime exceptions to avoid leaking threads
-                        System.err.printf("Warning: %s encountered an exception while running.%s%n", this.getName(), e);
-                        log.catching(Level.DEBUG, e);
+                        runTask(task.runnable);
                     } finally {
-                        synchronized (pendingLock) {
-                            pending--;
-                            if (pending == 0) {
-                                pendingLock.notifyAll();
-                            }
-                        }
+                        long elapsed = System.nanoTime() - start;
+                        runTime.record(elapsed);
+                        busyNanos.add(elapsed);
+                        busy += elapsed;
+                        taskDone();
                     }
                 }
+                log.debug("Worker detected shutdown...");
             } catch (InterruptedException e) {
                 // causes early termination of worker threads
                 System.err.printf("Warning: %s interrupted while waiting.%n", this.getName());
@@ -257,5 +754,252 @@ public class WorkQueue {
             }
             log.debug("Worker thread terminating...");
         }
+
+        /**
+         * Retires this worker if the monitor asked a worker to retire. The
+         * worker leaves the array of workers and hands its queued tasks to the
+         * submission queue.
+         *
+         * @return true if this worker retired and must stop
+         */
+        private boolean retire() {
+            int count;
+            do {
+                count = retiring.get();
+                if (count == 0) {
+                    return false;
+                }
+            } while (!retiring.compareAndSet(count, count - 1));
+
+            removeWorker(this);
+            Task task;
+            while ((task = deque.pollFirst()) != null) {
+                submissions.add(task);
+            }
+            if (!submissions.isEmpty() && idleWorkers > 0) {
+                synchronized (idleLock) {
+                    idleLock.notify();
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * A submitted task and when it was submitted
+     */
+    private static class Task {
+        /**
+         * The task to run
+         */
+        private final Runnable runnable;
+
+        /**
+         * When the task was submitted, from {@link System#nanoTime()}
+         */
+        private final long submitted;
+
+        /**
+         * Constructs a new instance of this class, submitted now
+         *
+         * @param runnable the task to run
+         */
+        private Task(Runnable runnable) {
+            this.runnable = runnable;
+            this.submitted = System.nanoTime();
+        }
+    }
+
+    /**
+     * A read-only view of the queue latency, run time and worker utilization of
+     * this queue.
+     */
+    public class Stats {
+        /**
+         * @return the time from submitting a task to a worker taking it
+         */
+        public LatencyHistogram getQueueLatency() {
+            return queueLatency;
+        }
+
+        /**
+         * @return the time spent running each task, including tasks run by the
+         * thread that submitted them
+         */
+        public LatencyHistogram getRunTime() {
+            return runTime;
+        }
+
+        /**
+         * @return the time workers spent running tasks, in nanoseconds
+         */
+        public long getBusyNanos() {
+            return busyNanos.sum();
+        }
+
+        /**
+         * @return the time workers spent waiting for tasks, in nanoseconds
+         */
+        public long getIdleNanos() {
+            return idleNanos.sum();
+        }
+
+        /**
+         * Returns the fraction of the time of the workers spent running tasks
+         * rather than waiting for them.
+         *
+         * @return the busy ratio, from 0 to 1
+         */
+        public double getBusyRatio() {
+            long busy = getBusyNanos();
+            long total = busy + getIdleNanos();
+            return total <= 0 ? 0 : (double) busy / total;
+        }
+
+        /**
+         * @return the most workers the queue had at once
+         */
+        public int getPeakWorkers() {
+            return monitor == null ? workers.length : monitor.peak;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("queue latency: %s%nrun time: %s%n"
+                            + "%d workers (at most %d) %.0f%% busy (%s busy, %s idle), %d caller runs, "
+                            + "queue depth high water mark %d",
+                    queueLatency, runTime, size(), getPeakWorkers(), getBusyRatio() * 100,
+                    LatencyHistogram.format(getBusyNanos()), LatencyHistogram.format(getIdleNanos()),
+                    getCallerRuns(), getHighWaterMark());
+        }
+    }
+
+    /**
+     * Resizes the workers of an adaptive queue. The blocking ratio of the
+     * workers is one minus the CPU time they used divided by the time they
+     * spent running tasks. The target number of workers is the number of
+     * processors divided by one minus the blocking ratio, so tasks that block
+     * half the time get two workers per processor. Workers waiting for a
+     * processor also look blocked, so while the workers keep the processors
+     * busy the target is one worker per processor instead.
+     */
+    private class Monitor extends Thread {
+        /**
+         * Used to read the CPU time of the workers
+         */
+        private final ThreadMXBean threads;
+
+        /**
+         * Whether the CPU time of the workers can be measured. If not, the
+         * workers are assumed to block half the time.
+         */
+        private final boolean measured;
+
+        /**
+         * Number of processors available
+         */
+        private final int processors;
+
+        /**
+         * CPU and busy time of every worker at the last decision
+         */
+        private Map<Worker, long[]> last;
+
+        /**
+         * When the workers were last measured, from {@link System#nanoTime()}
+         */
+        private long sampled;
+
+        /**
+         * Blocking ratio of the workers measured at the last decision
+         */
+        private double blocking;
+
+        /**
+         * The most workers the queue had at once
+         */
+        private volatile int peak;
+
+        /**
+         * Initializes the monitor thread.
+         */
+        private Monitor() {
+            setName("WorkQueueMonitor");
+            setDaemon(true);
+            this.threads = ManagementFactory.getThreadMXBean();
+            this.measured = threads.isThreadCpuTimeSupported() && threads.isThreadCpuTimeEnabled();
+            this.processors = Runtime.getRuntime().availableProcessors();
+            this.last = new HashMap<>();
+            this.sampled = System.nanoTime();
+            this.blocking = 0.5;
+            this.peak = workers.length;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!shutdown) {
+                    Thread.sleep(ADAPT_INTERVAL);
+                    adapt();
+                }
+            } catch (InterruptedException e) {
+                log.debug("Work queue monitor stopped.");
+            }
+        }
+
+        /**
+         * Measures the workers since the last decision and adds or retires
+         * workers if needed.
+         */
+        private void adapt() {
+            Worker[] current = workers;
+            long now = System.nanoTime();
+            long elapsed = now - sampled;
+            sampled = now;
+            long cpu = 0;
+            long busy = 0;
+            int compared = 0;
+            Map<Worker, long[]> next = new HashMap<>();
+            for (Worker worker : current) {
+                long[] sample = {measured ? threads.getThreadCpuTime(worker.getId()) : -1, worker.busy};
+                long[] previous = last.get(worker);
+                if (previous != null && sample[0] >= 0 && previous[0] >= 0) {
+                    cpu += sample[0] - previous[0];
+                    busy += sample[1] - previous[1];
+                    compared++;
+                }
+                next.put(worker, sample);
+            }
+            last = next;
+            if (compared == 0 || elapsed <= 0) {
+                return; // nothing to compare with yet
+            }
+            if (measured && busy > 0) {
+                blocking = Math.max(0, Math.min(1, 1 - (double) cpu / busy));
+            }
+            boolean saturated = measured && cpu >= 0.75 * elapsed * processors;
+
+            double utilization = (double) busy / (elapsed * compared);
+            int target = saturated ? processors : (int) Math.ceil(processors / Math.max(0.05, 1 - blocking));
+            target = Math.max(minWorkers, Math.min(maxWorkers, target));
+            int size = current.length - retiring.get();
+            int waiting = queued.get();
+
+            if (waiting > 0 && size < target) {
+                int added = Math.min(target - size, waiting);
+                log.info("Adding {} workers to {} ({}% blocked, {} tasks waiting, target {})",
+                        added, size, Math.round(blocking * 100), waiting, target);
+                addWorkers(added);
+                peak = Math.max(peak, workers.length);
+            } else if (size > minWorkers && (size > target || (waiting == 0 && utilization < 0.25))) {
+                log.info("Retiring one of {} workers ({}% blocked, {}% busy, {} tasks waiting, target {}{})",
+                        size, Math.round(blocking * 100), Math.round(utilization * 100), waiting, target,
+                        saturated ? ", processors saturated" : "");
+                retiring.incrementAndGet();
+                synchronized (idleLock) {
+                    idleLock.notifyAll();
+                }
+            }
+        }
     }
 }
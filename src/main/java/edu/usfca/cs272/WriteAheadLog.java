@@ -0,0 +1,664 @@
+package edu.usfca.cs272;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Makes changes to an index survive a crash by writing each change to an
+ * append-only log before it is lost with the heap. Like {@link CrawlCheckpoint},
+ * it keeps two files inside a directory:
+ * <ul>
+ *     <li>a log with one record for every call that added to the index, each
+ *     with a sequence number and a CRC32 of its contents</li>
+ *     <li>a gzip-compressed snapshot of the whole index and the sequence number
+ *     of the last record it includes, written every so many bytes of log;
+ *     the log is emptied after each snapshot</li>
+ * </ul>
+ * Records are collected in memory and written by a background thread every
+ * commit interval with a single fsync for the whole group, so adding to the
+ * index does not wait for the disk. A crash loses at most the changes of the
+ * last commit interval. Call {@link #sync()} to wait until every change so far
+ * is on disk.
+ * <p>
+ * Recovery reads the snapshot and replays every later record. Records already
+ * in the snapshot are skipped by sequence number, and a record cut short or
+ * damaged by a crash ends the log. The log is only replayed into a
+ * {@link ThreadSafeInvertedWordIndex} through
+ * {@link ThreadSafeInvertedWordIndex#recover(WriteAheadLog)}, which also makes
+ * the index log its changes from then on. Once a run has finished and saved
+ * its results, {@link #discard()} deletes both files so the next run does not
+ * restore them. This class is thread safe.
+ *
+ * @author Thomas de Laveaga
+ * @see ThreadSafeInvertedWordIndex#recover(WriteAheadLog)
+ */
+public class WriteAheadLog implements Closeable {
+    /**
+     * Logger used for this class
+     */
+    private static final Logger log = LogManager.getLogger();
+
+    /**
+     * Version written at the start of the snapshot
+     */
+    private static final int VERSION = 1;
+
+    /**
+     * Record of a single word added with {@link InvertedWordIndex#add(String, String, Integer)}
+     */
+    private static final byte ADD = 'A';
+
+    /**
+     * Record of consecutive words added with {@link InvertedWordIndex#addAll(ArrayList, String, Integer)}
+     */
+    private static final byte ADD_WORDS = 'W';
+
+    /**
+     * Record of an index added with {@link InvertedWordIndex#addAll(InvertedWordIndex)}
+     */
+    private static final byte ADD_INDEX = 'I';
+
+    /**
+     * Bytes in front of each record: its length, sequence number and CRC32
+     */
+    private static final int HEADER_SIZE = Integer.BYTES + Long.BYTES + Integer.BYTES;
+
+    /**
+     * Default time in milliseconds between group commits
+     */
+    public static final long DEFAULT_COMMIT_INTERVAL = 50;
+
+    /**
+     * Default number of log bytes after which a snapshot is written
+     */
+    public static final long DEFAULT_SNAPSHOT_BYTES = 64L << 20;
+
+    /**
+     * Number of uncommitted bytes that wakes the committer before the interval ends
+     */
+    private static final int EARLY_COMMIT_BYTES = 1 << 20;
+
+    /**
+     * Number of uncommitted bytes at which adding records waits for a commit
+     */
+    private static final int MAX_PENDING_BYTES = 64 << 20;
+
+    /**
+     * The snapshot file
+     */
+    private final Path snapshotPath;
+
+    /**
+     * The log file
+     */
+    private final Path logPath;
+
+    /**
+     * Time in milliseconds between group commits
+     */
+    private final long commitInterval;
+
+    /**
+     * Number of log bytes after which {@link #needsSnapshot()} returns true
+     */
+    private final long snapshotBytes;
+
+    /**
+     * Records added but not committed yet, guarded by this object
+     */
+    private ByteArrayOutputStream pending;
+
+    /**
+     * Sequence number of the last record added, guarded by this object
+     */
+    private long lastSequence;
+
+    /**
+     * Sequence number of the last record on disk, guarded by this object
+     */
+    private long durableSequence;
+
+    /**
+     * Number of bytes in the log file, guarded by {@link #io}
+     */
+    private long logSize;
+
+    /**
+     * The first error the committer ran into, or null, guarded by this object
+     */
+    private IOException failure;
+
+    /**
+     * Whether {@link #close()} has been called, guarded by this object
+     */
+    private boolean closed;
+
+    /**
+     * Guards writing to, emptying and closing the log file
+     */
+    private final Object io;
+
+    /**
+     * The open log file, or null before recovery
+     */
+    private FileChannel channel;
+
+    /**
+     * Writes and syncs the pending records every commit interval
+     */
+    private Thread committer;
+
+    /**
+     * Number of group commits written
+     */
+    private long commits;
+
+    /**
+     * Number of records written
+     */
+    private long records;
+
+    /**
+     * Time spent writing and syncing the log, in nanoseconds
+     */
+    private long commitNanos;
+
+    /**
+     * Number of snapshots written
+     */
+    private long snapshots;
+
+    /**
+     * Constructs a new instance of this class with the default commit interval
+     * and snapshot size, creating the directory if needed.
+     *
+     * @param directory the directory to store the log and snapshot in
+     * @throws IOException if unable to create the directory
+     */
+    public WriteAheadLog(Path directory) throws IOException {
+        this(directory, DEFAULT_COMMIT_INTERVAL, DEFAULT_SNAPSHOT_BYTES);
+    }
+
+    /**
+     * Constructs a new instance of this class, creating the directory if needed.
+     *
+     * @param directory      the directory to store the log and snapshot in
+     * @param commitInterval the time in milliseconds between group commits
+     * @param snapshotBytes  the number of log bytes after which a snapshot is written
+     * @throws IOException if unable to create the directory
+     */
+    public WriteAheadLog(Path directory, long commitInterval, long snapshotBytes) throws IOException {
+        Files.createDirectories(directory);
+        this.snapshotPath = directory.resolve("snapshot");
+        this.logPath = directory.resolve("log");
+        this.commitInterval = Math.max(1, commitInterval);
+        this.snapshotBytes = Math.max(1, snapshotBytes);
+        this.pending = new ByteArrayOutputStream();
+        this.io = new Object();
+    }
+
+    /**
+     * Reads the snapshot and replays the log into the index, then starts
+     * logging. Must be called once, before any record is added, and nothing
+     * else may change the index while it runs.
+     *
+     * @param index the index to restore into
+     * @return the number of log records replayed
+     * @throws IOException if unable to read the snapshot or open the log
+     */
+    long recover(InvertedWordIndex index) throws IOException {
+        long sequence = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new GZIPInputStream(Files.newInputStream(snapshotPath))))) {
+            if (in.readInt() != VERSION) {
+                throw new IOException("Unsupported write-ahead log version in " + snapshotPath);
+            }
+            sequence = in.readLong();
+            index.addAll(InvertedWordIndex.read(in));
+        } catch (NoSuchFileException e) {
+            log.debug("No write-ahead log snapshot at {}", snapshotPath);
+        }
+
+        long snapshotSequence = sequence;
+        long replayed = 0;
+        long valid = 0;
+        long previous = -1;
+        FileChannel file = FileChannel.open(logPath, CREATE, READ, WRITE);
+        long fileSize = file.size();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(logPath)))) {
+            CRC32 crc = new CRC32();
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                long recordSequence = in.readLong();
+                int checksum = in.readInt();
+                // any positive length is valid, as long as the rest of the record is in the file
+                if (length < 1) {
+                    log.warn("Ignoring damaged record at byte {} of {}", valid, logPath);
+                    break;
+                }
+                if (length > fileSize - valid - HEADER_SIZE) {
+                    log.warn("Ignoring incomplete record at byte {} of {}", valid, logPath);
+                    break;
+                }
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                crc.reset();
+                crc.update(payload);
+                if ((int) crc.getValue() != checksum || (previous >= 0 && recordSequence != previous + 1)) {
+                    log.warn("Ignoring damaged record at byte {} of {}", valid, logPath);
+                    break;
+                }
+                if (recordSequence > sequence) {
+                    apply(payload, index);
+                    sequence = recordSequence;
+                    replayed++;
+                }
+                previous = recordSequence;
+                valid += HEADER_SIZE + length;
+            }
+        } catch (EOFException e) {
+            log.warn("Ignoring incomplete record at byte {} of {}", valid, logPath);
+        } catch (IOException | RuntimeException e) {
+            file.close();
+            throw e;
+        }
+
+        // drop the damaged tail, or the whole log if the snapshot already has it, so new records follow on
+        if (previous <= snapshotSequence) {
+            valid = 0;
+        }
+        file.truncate(valid);
+        file.position(valid);
+        synchronized (io) {
+            channel = file;
+            logSize = valid;
+        }
+        synchronized (this) {
+            lastSequence = sequence;
+            durableSequence = sequence;
+        }
+        committer = new Thread(this::commitLoop, "write-ahead-log");
+        committer.setDaemon(true);
+        committer.start();
+        log.info("Recovered index from {} ({} log records replayed)", snapshotPath.getParent(), replayed);
+        return replayed;
+    }
+
+    /**
+     * Applies a logged change to the index.
+     *
+     * @param payload the record contents
+     * @param index   the index to change
+     * @throws IOException if the record cannot be read
+     */
+    private static void apply(byte[] payload, InvertedWordIndex index) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        byte type = in.readByte();
+        switch (type) {
+            case ADD -> index.add(in.readUTF(), in.readUTF(), in.readInt());
+            case ADD_WORDS -> {
+                String location = in.readUTF();
+                int position = in.readInt();
+                int count = in.readInt();
+                ArrayList<String> words = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    words.add(in.readUTF());
+                }
+                index.addAll(words, location, position);
+            }
+            case ADD_INDEX -> index.addAll(InvertedWordIndex.read(in));
+            default -> throw new IOException("Unknown write-ahead log record " + type);
+        }
+    }
+
+    /**
+     * Encodes a call to {@link InvertedWordIndex#add(String, String, Integer)}.
+     *
+     * @param word     the word added
+     * @param location where the word was found
+     * @param position the position it was found at
+     * @return the record contents, to pass to {@link #append(byte[])}
+     */
+    static byte[] encodeAdd(String word, String location, int position) {
+        return encode(out -> {
+            out.writeByte(ADD);
+            out.writeUTF(word);
+            out.writeUTF(location);
+            out.writeInt(position);
+        });
+    }
+
+    /**
+     * Encodes a call to {@link InvertedWordIndex#addAll(ArrayList, String, Integer)}.
+     *
+     * @param words    the words added
+     * @param location where the words were found
+     * @param position the position of the first word
+     * @return the record contents, to pass to {@link #append(byte[])}
+     */
+    static byte[] encodeAddAll(List<String> words, String location, int position) {
+        return encode(out -> {
+            out.writeByte(ADD_WORDS);
+            out.writeUTF(location);
+            out.writeInt(position);
+            out.writeInt(words.size());
+            for (String word : words) {
+                out.writeUTF(word);
+            }
+        });
+    }
+
+    /**
+     * Encodes a call to {@link InvertedWordIndex#addAll(InvertedWordIndex)}.
+     * The index must not change while it is encoded.
+     *
+     * @param index the index added
+     * @return the record contents, to pass to {@link #append(byte[])}
+     */
+    static byte[] encodeAddAll(InvertedWordIndex index) {
+        return encode(out -> {
+            out.writeByte(ADD_INDEX);
+            index.write(out);
+        });
+    }
+
+    /**
+     * Writes record contents to a byte array.
+     *
+     * @param contents writes the contents
+     * @return the contents
+     */
+    private static byte[] encode(Contents contents) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            contents.write(out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // never thrown by an in-memory stream
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Writes the contents of a record.
+     */
+    @FunctionalInterface
+    private interface Contents {
+        /**
+         * Writes the contents of a record.
+         *
+         * @param out the output to write to
+         * @throws IOException if the output throws an IOException
+         */
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    /**
+     * Adds a record to the next group commit. Records must be added in the
+     * order their changes were applied to the index, which
+     * {@link ThreadSafeInvertedWordIndex} ensures by adding them while it holds
+     * the write lock. Waits if the committer has fallen far behind. Records
+     * of any size are accepted, since recovery only needs the whole record in
+     * the log file.
+     *
+     * @param payload the record contents, from one of the encode methods
+     * @throws IllegalStateException if the log was not recovered or is closed
+     */
+    synchronized void append(byte[] payload) {
+        if (channel == null || closed) {
+            throw new IllegalStateException("Write-ahead log is not open");
+        }
+        if (failure != null) {
+            return; // already reported, and sync() and close() throw it
+        }
+        while (pending.size() >= MAX_PENDING_BYTES && failure == null && !closed) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(payload.length).putLong(++lastSequence).putInt((int) crc.getValue());
+        pending.write(header.array(), 0, HEADER_SIZE);
+        pending.write(payload, 0, payload.length);
+        if (pending.size() >= EARLY_COMMIT_BYTES) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Writes and syncs the pending records every commit interval until closed.
+     */
+    private void commitLoop() {
+        while (true) {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                if (pending.size() < EARLY_COMMIT_BYTES) {
+                    try {
+                        wait(commitInterval);
+                    } catch (InterruptedException e) {
+                        return; // close() commits whatever is left
+                    }
+                }
+            }
+            try {
+                commit();
+            } catch (IOException e) {
+                synchronized (this) {
+                    if (failure == null) {
+                        log.warn("Unable to write the write-ahead log: {}", e.getMessage());
+                        failure = e;
+                    }
+                    notifyAll();
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Writes every pending record to the log file with a single sync.
+     *
+     * @throws IOException if unable to write or sync the log
+     */
+    private void commit() throws IOException {
+        synchronized (io) {
+            ByteArrayOutputStream group;
+            long sequence;
+            synchronized (this) {
+                if (pending.size() == 0) {
+                    return;
+                }
+                group = pending;
+                pending = new ByteArrayOutputStream(group.size());
+                sequence = lastSequence;
+                notifyAll(); // appenders waiting for room
+            }
+            long start = System.nanoTime();
+            ByteBuffer bytes = ByteBuffer.wrap(group.toByteArray());
+            while (bytes.hasRemaining()) {
+                channel.write(bytes);
+            }
+            channel.force(false);
+            logSize += bytes.limit();
+            commitNanos += System.nanoTime() - start;
+            commits++;
+            synchronized (this) {
+                records += sequence - durableSequence;
+                durableSequence = sequence;
+                notifyAll(); // threads waiting in sync()
+            }
+        }
+    }
+
+    /**
+     * Waits until every record added so far is on disk.
+     *
+     * @throws IOException if the log could not be written
+     */
+    public void sync() throws IOException {
+        commit();
+        synchronized (this) {
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+
+    /**
+     * @return true once the log has grown enough that a snapshot should be written
+     */
+    public boolean needsSnapshot() {
+        synchronized (io) {
+            return logSize >= snapshotBytes;
+        }
+    }
+
+    /**
+     * Writes the index to a new snapshot and empties the log. Nothing may change
+     * the index while the snapshot is written, so every record added so far is
+     * in the snapshot; {@link ThreadSafeInvertedWordIndex#checkpoint()} ensures
+     * this by holding the read lock.
+     *
+     * @param index the index to write
+     * @throws IOException if unable to write the snapshot or empty the log
+     */
+    void writeSnapshot(InvertedWordIndex index) throws IOException {
+        long sequence;
+        synchronized (this) {
+            if (channel == null || closed) {
+                throw new IllegalStateException("Write-ahead log is not open");
+            }
+            sequence = lastSequence;
+        }
+        Path temp = Files.createTempFile(snapshotPath.getParent(), "snapshot", ".tmp");
+        try {
+            try (FileOutputStream file = new FileOutputStream(temp.toFile())) {
+                GZIPOutputStream compressed = new GZIPOutputStream(file);
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(compressed));
+                out.writeInt(VERSION);
+                out.writeLong(sequence);
+                index.write(out);
+                out.flush();
+                compressed.finish();
+                file.getFD().sync(); // the snapshot must be on disk before the log is emptied
+            }
+            Files.move(temp, snapshotPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+
+        // every record up to the sequence number is in the snapshot, and replay skips them if emptying fails
+        synchronized (io) {
+            synchronized (this) {
+                pending.reset();
+                durableSequence = sequence;
+                notifyAll();
+            }
+            channel.truncate(0);
+            channel.position(0);
+            channel.force(false);
+            logSize = 0;
+            snapshots++;
+        }
+        log.info("Wrote write-ahead log snapshot at record {}", sequence);
+    }
+
+    /**
+     * Commits every pending record, stops the committer and closes the log.
+     *
+     * @throws IOException if unable to write the pending records
+     */
+    @Override
+    public void close() throws IOException {
+        Thread thread;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            notifyAll();
+            thread = committer;
+        }
+        if (thread != null) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (io) {
+            if (channel != null) {
+                try {
+                    commit();
+                } finally {
+                    channel.close();
+                }
+            }
+        }
+        synchronized (this) {
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+
+    /**
+     * Closes the log and deletes the snapshot and the log, once every change is
+     * no longer needed, such as after a run finished and wrote its outputs. The
+     * next recovery then starts from an empty index.
+     *
+     * @throws IOException if unable to write the pending records or delete the files
+     */
+    public void discard() throws IOException {
+        close();
+        Files.deleteIfExists(snapshotPath);
+        Files.deleteIfExists(logPath);
+        log.info("Discarded write-ahead log in {}", logPath.getParent());
+    }
+
+    @Override
+    public String toString() {
+        synchronized (io) {
+            return String.format("%d records in %d group commits, %.1f ms writing and syncing, %d snapshots",
+                    records, commits, commitNanos / 1e6, snapshots);
+        }
+    }
+}